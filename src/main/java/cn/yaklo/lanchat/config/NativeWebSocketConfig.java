@@ -2,6 +2,7 @@ package cn.yaklo.lanchat.config;
 
 import cn.yaklo.lanchat.controller.WebSocketNativeController;
 import cn.yaklo.lanchat.interceptor.WebSocketHandshakeInterceptor;
+import cn.yaklo.lanchat.websocket.ChatHandshakeHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
@@ -20,9 +21,13 @@ public class NativeWebSocketConfig implements WebSocketConfigurer {
     @Autowired
     private WebSocketHandshakeInterceptor handshakeInterceptor;
 
+    @Autowired
+    private ChatHandshakeHandler handshakeHandler;
+
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
         registry.addHandler(webSocketNativeController, "/ws/chat")
+                .setHandshakeHandler(handshakeHandler)
                 .addInterceptors(handshakeInterceptor)
                 .setAllowedOrigins("*");
     }
@@ -1,11 +1,10 @@
 package cn.yaklo.lanchat.controller;
 
 import cn.yaklo.lanchat.dto.ChatMessageDto;
-import cn.yaklo.lanchat.entity.ChatFile;
 import cn.yaklo.lanchat.entity.ChatMessage;
 import cn.yaklo.lanchat.service.ChatService;
-import cn.yaklo.lanchat.service.FileService;
 import cn.yaklo.lanchat.service.UserService;
+import cn.yaklo.lanchat.util.CursorUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -17,7 +16,6 @@ import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 @Controller
 public class ChatController {
@@ -25,9 +23,6 @@ public class ChatController {
     @Autowired
     private ChatService chatService;
 
-    @Autowired
-    private FileService fileService;
-
     @Autowired
     private UserService userService;
 
@@ -46,40 +41,44 @@ public class ChatController {
     public ResponseEntity<Map<String, Object>> getMessages(
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "30") int size,
+            @RequestParam(required = false) String cursor,
             @RequestParam(required = false) String before) {
 
-        List<ChatMessage> messages;
-        if (before != null && !before.isEmpty()) {
+        // 消息和文件信息由一次联表查询（或内存缓冲区加文件缓存）得到，查询次数与页面内容无关
+        List<ChatMessageDto> messageDtos;
+        if (cursor != null && !cursor.isEmpty()) {
+            // 按消息序号（游标）分页，同一秒内的多条消息也不会重复或遗漏
+            long beforeId;
+            try {
+                beforeId = CursorUtil.decode(cursor);
+            } catch (IllegalArgumentException e) {
+                Map<String, Object> error = new HashMap<>();
+                error.put("message", e.getMessage());
+                return ResponseEntity.badRequest().body(error);
+            }
+            messageDtos = chatService.getMessageDtosBeforeId(beforeId, size);
+        } else if (before != null && !before.isEmpty()) {
             try {
                 // 尝试解析完整的时间戳格式（yyyy-MM-dd HH:mm:ss）
                 LocalDateTime timestamp = LocalDateTime.parse(before,
                         java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
                 System.out.println("加载指定时间戳之前的消息: " + timestamp);
-                messages = chatService.getMessagesBefore(timestamp, size);
-                System.out.println("加载到 " + messages.size() + " 条消息");
+                messageDtos = chatService.getMessageDtosBefore(timestamp, size);
+                System.out.println("加载到 " + messageDtos.size() + " 条消息");
             } catch (Exception e) {
                 System.err.println("时间戳解析失败: " + before + "，错误: " + e.getMessage());
                 e.printStackTrace();
                 // 如果解析失败，返回最近的消息
-                messages = chatService.getRecentMessages(size);
+                messageDtos = chatService.getRecentMessageDtos(size);
             }
         } else {
             System.out.println("加载最近的消息");
-            messages = chatService.getRecentMessages(size);
+            messageDtos = chatService.getRecentMessageDtos(size);
         }
 
-        List<ChatMessageDto> messageDtos = messages.stream()
-                .map(message -> {
-                    ChatFile file = null;
-                    if (message.getFileId() != null) {
-                        file = fileService.getFileById(message.getFileId());
-                    }
-                    return ChatMessageDto.fromEntity(message, file);
-                })
-                .collect(Collectors.toList());
-
         Map<String, Object> response = new HashMap<>();
         response.put("messages", messageDtos);
+        response.put("nextCursor", CursorUtil.nextCursor(messageDtos, size));
         response.put("totalCount", chatService.getTotalMessageCount());
 
         return ResponseEntity.ok(response);
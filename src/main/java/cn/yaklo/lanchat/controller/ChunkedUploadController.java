@@ -0,0 +1,169 @@
+package cn.yaklo.lanchat.controller;
+
+import cn.yaklo.lanchat.entity.ChatFile;
+import cn.yaklo.lanchat.service.ChunkedUploadService;
+import cn.yaklo.lanchat.service.ChunkedUploadService.UploadSession;
+import cn.yaklo.lanchat.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 分片上传：初始化 -> 并行上传各分片（请求体为分片原始字节）-> 完成
+ * 中断后用GET查询缺失的分片继续上传
+ */
+@Controller
+public class ChunkedUploadController {
+
+    @Autowired
+    private ChunkedUploadService chunkedUploadService;
+
+    @Autowired
+    private UserService userService;
+
+    @PostMapping("/api/upload/init")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> initUpload(
+            @RequestBody Map<String, Object> body,
+            HttpServletRequest request) {
+
+        Map<String, Object> response = new HashMap<>();
+        try {
+            Object fileSize = body.get("fileSize");
+            if (!(fileSize instanceof Number)) {
+                throw new IllegalArgumentException("文件大小不能为空");
+            }
+            UploadSession session = chunkedUploadService.init(
+                    (String) body.get("fileName"),
+                    ((Number) fileSize).longValue(),
+                    (String) body.get("contentType"),
+                    (String) body.get("sha256"),
+                    userService.getClientIp(request));
+
+            response.put("success", true);
+            response.put("uploadId", session.getUploadId());
+            response.put("chunkSize", session.getChunkSize());
+            response.put("chunkCount", session.getChunkCount());
+            return ResponseEntity.ok(response);
+
+        } catch (IllegalArgumentException | ClassCastException e) {
+            return error(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "文件上传失败: " + e.getMessage());
+        }
+    }
+
+    @PutMapping("/api/upload/{uploadId}/chunks/{index}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> uploadChunk(
+            @PathVariable String uploadId,
+            @PathVariable int index,
+            HttpServletRequest request) {
+
+        UploadSession session = chunkedUploadService.getSession(uploadId, userService.getClientIp(request));
+        if (session == null) {
+            return error(HttpStatus.NOT_FOUND, "上传不存在或已过期");
+        }
+        try {
+            chunkedUploadService.writeChunk(session, index, request.getInputStream());
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("index", index);
+            return ResponseEntity.ok(response);
+
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            return error(HttpStatus.CONFLICT, e.getMessage());
+        } catch (IOException e) {
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "分片上传失败: " + e.getMessage());
+        }
+    }
+
+    @GetMapping("/api/upload/{uploadId}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getUploadStatus(
+            @PathVariable String uploadId,
+            HttpServletRequest request) {
+
+        UploadSession session = chunkedUploadService.getSession(uploadId, userService.getClientIp(request));
+        if (session == null) {
+            return error(HttpStatus.NOT_FOUND, "上传不存在或已过期");
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("uploadId", session.getUploadId());
+        response.put("fileName", session.getFileName());
+        response.put("fileSize", session.getFileSize());
+        response.put("chunkSize", session.getChunkSize());
+        response.put("chunkCount", session.getChunkCount());
+        response.put("missing", chunkedUploadService.getMissingChunks(session));
+        return ResponseEntity.ok(response);
+    }
+
+    @PostMapping("/api/upload/{uploadId}/complete")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> completeUpload(
+            @PathVariable String uploadId,
+            HttpServletRequest request) {
+
+        UploadSession session = chunkedUploadService.getSession(uploadId, userService.getClientIp(request));
+        if (session == null) {
+            return error(HttpStatus.NOT_FOUND, "上传不存在或已过期");
+        }
+        try {
+            ChatFile savedFile = chunkedUploadService.complete(session);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("fileId", savedFile.getId());
+            response.put("fileName", savedFile.getOriginalName());
+            response.put("fileSize", savedFile.getFileSize());
+            response.put("message", "文件上传成功");
+            return ResponseEntity.ok(response);
+
+        } catch (IllegalStateException e) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("message", e.getMessage());
+            response.put("missing", chunkedUploadService.getMissingChunks(session));
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+        } catch (IOException e) {
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "文件上传失败: " + e.getMessage());
+        }
+    }
+
+    @DeleteMapping("/api/upload/{uploadId}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> abortUpload(
+            @PathVariable String uploadId,
+            HttpServletRequest request) {
+
+        UploadSession session = chunkedUploadService.getSession(uploadId, userService.getClientIp(request));
+        if (session == null) {
+            return error(HttpStatus.NOT_FOUND, "上传不存在或已过期");
+        }
+        try {
+            chunkedUploadService.abort(session);
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (IOException e) {
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    private ResponseEntity<Map<String, Object>> error(HttpStatus status, String message) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("message", message);
+        return ResponseEntity.status(status).body(response);
+    }
+}
@@ -0,0 +1,88 @@
+package cn.yaklo.lanchat.controller;
+
+import cn.yaklo.lanchat.dto.ChatMessageDto;
+import cn.yaklo.lanchat.service.ChatService;
+import cn.yaklo.lanchat.service.UserService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 全部聊天记录的流式导出，用于备份
+ * NDJSON每行一条未撤回的消息，按序号升序；sinceId为上次导出的最后一个序号，只导出之后的消息，实现增量备份
+ */
+@Controller
+public class ExportController {
+
+    // 每批转换和写出的消息数，决定导出时的内存占用
+    private static final int EXPORT_BATCH_SIZE = 500;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @GetMapping("/api/admin/messages/export")
+    public ResponseEntity<StreamingResponseBody> exportMessages(
+            @RequestParam(defaultValue = "0") long sinceId,
+            @RequestParam(defaultValue = "false") boolean gzip,
+            HttpServletRequest request) {
+
+        if (!userService.isAdmin(request)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        if (sinceId < 0) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        StreamingResponseBody body = out -> {
+            OutputStream target = gzip ? new GZIPOutputStream(out, 64 * 1024, true) : out;
+            try {
+                chatService.exportActiveMessages(sinceId, EXPORT_BATCH_SIZE, batch -> writeLines(target, batch));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (target instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) target).finish();
+            }
+            target.flush();
+        };
+
+        String fileName = "messages-since-" + sinceId + (gzip ? ".ndjson.gz" : ".ndjson");
+        return ResponseEntity.ok()
+                .contentType(gzip ? MediaType.parseMediaType("application/gzip")
+                        : MediaType.parseMediaType("application/x-ndjson;charset=UTF-8"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
+                .body(body);
+    }
+
+    private void writeLines(OutputStream out, List<ChatMessageDto> batch) {
+        try {
+            for (ChatMessageDto dto : batch) {
+                out.write(objectMapper.writeValueAsBytes(dto));
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
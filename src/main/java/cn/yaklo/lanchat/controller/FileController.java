@@ -2,33 +2,71 @@ package cn.yaklo.lanchat.controller;
 
 import cn.yaklo.lanchat.entity.ChatFile;
 import cn.yaklo.lanchat.service.FileService;
+import cn.yaklo.lanchat.service.ThumbnailService;
 import cn.yaklo.lanchat.service.UserService;
+import cn.yaklo.lanchat.util.GzipUtil;
+import cn.yaklo.lanchat.util.HttpRangeUtil;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
 
 @Controller
 public class FileController {
 
+    // 下载响应的浏览器缓存时间（秒），过期后用ETag重新验证
+    private static final long CACHE_MAX_AGE = 86400;
+
+    // 小文件直接写出，sendfile的额外开销不划算
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
+    // Tomcat的sendfile请求属性（org.apache.catalina.Globals）
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
     @Autowired
     private FileService fileService;
 
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    // 缩略图尚未生成时请求线程等待的最长时间（毫秒）
+    @Value("${lanchat.thumbnail.wait-timeout:200}")
+    private long thumbnailWaitTimeout;
+
     @PostMapping("/api/upload")
     @ResponseBody
     public ResponseEntity<Map<String, Object>> uploadFile(
@@ -62,35 +100,195 @@ public class FileController {
         }
     }
 
-    @GetMapping("/api/file/{fileId}")
+    /**
+     * 秒传：客户端先计算内容的SHA-256，服务器已有相同内容时直接生成文件记录，不需要上传
+     */
+    @PostMapping("/api/upload/instant")
     @ResponseBody
-    public ResponseEntity<Resource> downloadFile(@PathVariable Long fileId) {
+    public ResponseEntity<Map<String, Object>> instantUpload(
+            @RequestBody Map<String, String> body,
+            HttpServletRequest request) {
+
+        Map<String, Object> response = new HashMap<>();
+        String sha256 = body.get("sha256");
+        String fileName = body.get("fileName");
+        if (sha256 == null || !sha256.matches("[0-9a-fA-F]{64}") || fileName == null || fileName.trim().isEmpty()) {
+            response.put("success", false);
+            response.put("message", "文件名和SHA-256不能为空");
+            return ResponseEntity.badRequest().body(response);
+        }
+
+        String userIp = userService.getClientIp(request);
+        ChatFile savedFile = fileService.copyByContentHash(sha256.toLowerCase(), fileName, body.get("contentType"),
+                userIp);
+        if (savedFile == null) {
+            response.put("success", false);
+            response.put("exists", false);
+            return ResponseEntity.ok(response);
+        }
+
+        response.put("success", true);
+        response.put("exists", true);
+        response.put("fileId", savedFile.getId());
+        response.put("fileName", savedFile.getOriginalName());
+        response.put("fileSize", savedFile.getFileSize());
+        response.put("message", "文件秒传成功");
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * 下载文件
+     * 支持Range（含多区间）断点续传，以内容SHA-256作为强ETag处理If-None-Match/If-Range（旧记录补算摘要前为弱ETag）；
+     * 图片、音视频和PDF默认inline以便浏览器直接播放，download=true时强制下载。
+     * 较大的单区间响应在Tomcat支持时交给sendfile发送，不经过堆内存复制；
+     * 其余情况（小文件、不支持sendfile、多区间）用transferTo写到响应流，仍会经过堆缓冲区
+     */
+    @GetMapping("/api/file/{fileId}")
+    public void downloadFile(@PathVariable Long fileId,
+                             @RequestParam(defaultValue = "false") boolean download,
+                             HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
         ChatFile chatFile = fileService.getFileById(fileId);
         if (chatFile == null) {
-            return ResponseEntity.notFound().build();
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
 
-        java.io.File file = fileService.getPhysicalFile(fileId);
-        if (file == null || !file.exists()) {
-            return ResponseEntity.notFound().build();
+        java.io.File file = new java.io.File(chatFile.getFilePath());
+        if (!file.isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // 旧记录可能没有文件类型，物理文件没有扩展名，按原始文件名推断
+        String contentType = FileService.resolveContentType(chatFile.getContentType(), chatFile.getOriginalName());
+
+        // 压缩保存的文件：客户端接受gzip时直接发送压缩内容，否则边读边解压；两种表示的ETag不同
+        boolean storedCompressed = ChatFile.ENCODING_GZIP.equals(chatFile.getStorageEncoding());
+        boolean sendCompressed = storedCompressed
+                && GzipUtil.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        if (storedCompressed) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+
+        // 条件请求：ETag或Last-Modified未变化时返回304，由Spring同时写入ETag和Last-Modified头
+        // 旧记录的内容摘要在后台补算，补算完成前用大小和修改时间组成弱ETag（不能用于If-Range）
+        long lastModified = file.lastModified() / 1000 * 1000;
+        String etag = chatFile.getContentHash() != null
+                ? "\"" + chatFile.getContentHash() + (sendCompressed ? "-gzip" : "") + "\""
+                : "W/\"" + file.length() + "-" + lastModified + (sendCompressed ? "-gzip" : "") + "\"";
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, max-age=" + CACHE_MAX_AGE);
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return;
+        }
+
+        boolean inline = !download && isInlineType(contentType);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                ContentDisposition.builder(inline ? "inline" : "attachment")
+                        .filename(chatFile.getOriginalName(), StandardCharsets.UTF_8)
+                        .build().toString());
+
+        // 发送压缩内容时Range针对压缩后的字节
+        long length = storedCompressed && !sendCompressed ? chatFile.getFileSize() : file.length();
+        List<HttpRangeUtil.ByteRange> ranges = null;
+        if (HttpRangeUtil.isRangeApplicable(request.getHeader(HttpHeaders.IF_RANGE), etag, lastModified)) {
+            ranges = HttpRangeUtil.parse(request.getHeader(HttpHeaders.RANGE), length);
+        }
+        boolean head = "HEAD".equals(request.getMethod());
+        if (sendCompressed && ranges != null && ranges.size() > 1) {
+            // multipart响应体本身不是gzip，无法标注Content-Encoding，多区间按完整内容返回
+            ranges = null;
+        }
+
+        if (storedCompressed && !sendCompressed && (ranges == null || !ranges.isEmpty())) {
+            // 解压发送时只支持单个区间，多区间按完整内容返回
+            response.setContentType(contentType);
+            if (ranges != null && ranges.size() == 1) {
+                HttpRangeUtil.ByteRange range = ranges.get(0);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, range.contentRange(length));
+                sendDecompressed(response, file, range.start, range.length(), head);
+            } else {
+                sendDecompressed(response, file, 0, length, head);
+            }
+        } else if (ranges == null) {
+            response.setContentType(contentType);
+            setContentEncoding(response, sendCompressed);
+            sendFile(request, response, file, 0, length, head);
+        } else if (ranges.isEmpty()) {
+            // 416没有响应体，不带Content-Encoding
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        } else if (ranges.size() == 1) {
+            HttpRangeUtil.ByteRange range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            setContentEncoding(response, sendCompressed);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, range.contentRange(length));
+            sendFile(request, response, file, range.start, range.length(), head);
+        } else {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            sendMultipart(response, file, contentType, ranges, head);
         }
+    }
 
-        Resource resource = new FileSystemResource(file);
+    private void setContentEncoding(HttpServletResponse response, boolean compressed) {
+        if (compressed) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, ChatFile.ENCODING_GZIP);
+        }
+    }
 
-        String contentType = chatFile.getContentType();
-        if (contentType == null) {
-            try {
-                contentType = Files.probeContentType(file.toPath());
-            } catch (IOException e) {
-                contentType = "application/octet-stream";
+    /**
+     * 图片的缩略图（size=thumb，聊天列表中显示）或预览图（size=preview，点击查看）
+     * 尚未生成时只短暂等待，不长时间占用请求线程：缩略图返回202，客户端稍后重试；预览图重定向到原文件。
+     * 不是图片或生成失败时返回404
+     */
+    @GetMapping("/api/file/{fileId}/thumb")
+    public void downloadThumbnail(@PathVariable Long fileId,
+                                  @RequestParam(defaultValue = "thumb") String size,
+                                  HttpServletRequest request,
+                                  HttpServletResponse response) throws IOException {
+        ChatFile chatFile = fileService.getFileById(fileId);
+        if (chatFile == null || !ThumbnailService.isSupported(chatFile.getContentType())) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        java.io.File file = new java.io.File(chatFile.getFilePath());
+        if (!file.isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        int bound = "preview".equals(size) ? ThumbnailService.PREVIEW_SIZE : ThumbnailService.THUMB_SIZE;
+        // 旧记录补算内容摘要之前没有缩略图，按尚未生成处理
+        String contentHash = chatFile.getContentHash();
+        if (thumbnailService.isFailed(contentHash)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        Path thumbnail = thumbnailService.getThumbnail(chatFile, bound, thumbnailWaitTimeout);
+        if (thumbnail == null) {
+            if (thumbnailService.isFailed(contentHash)) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            } else if (bound == ThumbnailService.PREVIEW_SIZE) {
+                response.sendRedirect(request.getContextPath() + "/api/file/" + fileId);
+            } else {
+                response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
             }
+            return;
         }
 
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION,
-                        "attachment; filename=\"" + chatFile.getOriginalName() + "\"")
-                .body(resource);
+        // 缩略图由内容决定，内容不变缩略图就不变
+        String etag = "\"" + contentHash + "-" + bound + "\"";
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return;
+        }
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, max-age=" + CACHE_MAX_AGE);
+        response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+        sendFile(request, response, thumbnail.toFile(), 0, Files.size(thumbnail), "HEAD".equals(request.getMethod()));
     }
 
     @GetMapping("/api/file/{fileId}/info")
@@ -111,4 +309,93 @@ public class FileController {
 
         return ResponseEntity.ok(fileInfo);
     }
-}
\ No newline at end of file
+
+    private boolean isInlineType(String contentType) {
+        return contentType.startsWith("image/") || contentType.startsWith("video/")
+                || contentType.startsWith("audio/") || contentType.equals("application/pdf");
+    }
+
+    /**
+     * 发送文件的一段。不小于SENDFILE_MIN_SIZE且Tomcat支持sendfile时，交给容器在写出响应时直接从文件发送到socket；
+     * 否则用transferTo写到响应流，响应流不是FileChannel可直接写入的通道，数据会经过堆缓冲区复制
+     */
+    private void sendFile(HttpServletRequest request, HttpServletResponse response, java.io.File file,
+                          long position, long count, boolean head) throws IOException {
+        response.setContentLengthLong(count);
+        if (head) {
+            return;
+        }
+        if (count >= SENDFILE_MIN_SIZE && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START_ATTR, position);
+            request.setAttribute(SENDFILE_END_ATTR, position + count);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            transfer(channel, position, count, Channels.newChannel(response.getOutputStream()));
+        }
+    }
+
+    /**
+     * 压缩保存的文件解压后发送其中一段，用于不接受gzip的客户端
+     */
+    private void sendDecompressed(HttpServletResponse response, java.io.File file, long position, long count,
+                                  boolean head) throws IOException {
+        response.setContentLengthLong(count);
+        if (head || count == 0) {
+            return;
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()), 64 * 1024)) {
+            StreamUtils.copyRange(in, response.getOutputStream(), position, position + count - 1);
+        }
+    }
+
+    /**
+     * 多区间响应（multipart/byteranges），各部分依次用transferTo写到响应流，数据经过堆缓冲区复制
+     */
+    private void sendMultipart(HttpServletResponse response, java.io.File file, String contentType,
+                               List<HttpRangeUtil.ByteRange> ranges, boolean head) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        long total = file.length();
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (HttpRangeUtil.ByteRange range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + range.contentRange(total) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range.length();
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closing.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (head) {
+            return;
+        }
+
+        OutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                out.write(partHeaders.get(i));
+                transfer(channel, ranges.get(i).start, ranges.get(i).length(), target);
+            }
+        }
+        out.write(closing);
+    }
+
+    private void transfer(FileChannel channel, long position, long count, WritableByteChannel target)
+            throws IOException {
+        while (count > 0) {
+            long sent = channel.transferTo(position, count, target);
+            if (sent <= 0) {
+                throw new EOFException("文件在发送过程中被截断");
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+}
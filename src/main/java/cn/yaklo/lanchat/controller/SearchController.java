@@ -0,0 +1,86 @@
+package cn.yaklo.lanchat.controller;
+
+import cn.yaklo.lanchat.dto.ChatMessageDto;
+import cn.yaklo.lanchat.service.ChatService;
+import cn.yaklo.lanchat.service.MessageSearchIndex;
+import cn.yaklo.lanchat.util.CursorUtil;
+import cn.yaklo.lanchat.util.SearchTextUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Controller
+public class SearchController {
+
+    private static final int MAX_PAGE_SIZE = 100;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private MessageSearchIndex messageSearchIndex;
+
+    /**
+     * 全文检索消息内容和用户名，多个词用空格分隔，按序号倒序分页
+     * highlights为消息ID -> 已转义HTML的高亮片段（命中部分用<mark>标出）
+     * 单词前缀匹配的词项过多时只按前面的词项检索，truncated为true，应改用更长的前缀
+     */
+    @GetMapping("/api/search")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> search(
+            @RequestParam("q") String query,
+            @RequestParam(defaultValue = "20") int size,
+            @RequestParam(required = false) String cursor) {
+
+        List<String> terms = SearchTextUtil.splitTerms(query);
+        if (terms.isEmpty()) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("message", "搜索内容不能为空");
+            return ResponseEntity.badRequest().body(error);
+        }
+
+        long beforeId = Long.MAX_VALUE;
+        if (cursor != null && !cursor.isEmpty()) {
+            try {
+                beforeId = CursorUtil.decode(cursor);
+            } catch (IllegalArgumentException e) {
+                Map<String, Object> error = new HashMap<>();
+                error.put("message", e.getMessage());
+                return ResponseEntity.badRequest().body(error);
+            }
+        }
+
+        size = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        List<ChatMessageDto> messageDtos = chatService.searchMessageDtos(terms, beforeId, size);
+
+        Map<Long, String> highlights = new LinkedHashMap<>();
+        for (ChatMessageDto dto : messageDtos) {
+            highlights.put(dto.getId(), SearchTextUtil.highlight(dto.getContent(), terms));
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("messages", messageDtos);
+        response.put("highlights", highlights);
+        response.put("nextCursor", CursorUtil.nextCursor(messageDtos, size));
+
+        List<SearchTextUtil.QueryToken> tokens = new ArrayList<>();
+        for (String term : terms) {
+            tokens.addAll(SearchTextUtil.queryTokens(term));
+        }
+        boolean truncated = messageSearchIndex.isPrefixTruncated(tokens);
+        response.put("truncated", truncated);
+        // 索引仍在后台补齐或前缀展开被截断时结果可能不完整
+        response.put("complete", messageSearchIndex.isReady() && !truncated);
+
+        return ResponseEntity.ok(response);
+    }
+}
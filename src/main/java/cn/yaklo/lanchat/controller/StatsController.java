@@ -0,0 +1,74 @@
+package cn.yaklo.lanchat.controller;
+
+import cn.yaklo.lanchat.service.ChatCounters;
+import cn.yaklo.lanchat.service.CompressionStats;
+import cn.yaklo.lanchat.service.FileMetadataCache;
+import cn.yaklo.lanchat.service.FileReconciler;
+import cn.yaklo.lanchat.service.FileService;
+import cn.yaklo.lanchat.service.ThumbnailService;
+import cn.yaklo.lanchat.service.MessageSearchIndex;
+import cn.yaklo.lanchat.service.UserService;
+import cn.yaklo.lanchat.websocket.SessionRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.HashMap;
+import java.util.Map;
+
+@Controller
+public class StatsController {
+
+    @Autowired
+    private CompressionStats compressionStats;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+
+    @Autowired
+    private ChatCounters chatCounters;
+
+    @Autowired
+    private MessageSearchIndex messageSearchIndex;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    @Autowired
+    private FileReconciler fileReconciler;
+
+    @Autowired
+    private UserService userService;
+
+    /**
+     * 运行统计，按用户IP的计数只返回给管理员
+     */
+    @GetMapping("/api/stats")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getStats(HttpServletRequest request) {
+        Map<String, Object> websocket = new HashMap<>();
+        websocket.put("sessions", sessionRegistry.getSessionCount());
+        websocket.put("droppedFrames", sessionRegistry.getDroppedCount());
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("websocket", websocket);
+        response.put("compression", compressionStats.snapshot());
+        response.put("fileCache", fileMetadataCache.snapshot());
+        response.put("counters", chatCounters.snapshot(userService.isAdmin(request)));
+        response.put("searchIndex", messageSearchIndex.snapshot());
+        response.put("fileStorage", fileService.getStorageStats());
+        response.put("thumbnails", thumbnailService.snapshot());
+        response.put("fileReconciler", fileReconciler.snapshot());
+
+        return ResponseEntity.ok(response);
+    }
+}
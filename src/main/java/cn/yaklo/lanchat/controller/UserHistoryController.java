@@ -0,0 +1,162 @@
+package cn.yaklo.lanchat.controller;
+
+import cn.yaklo.lanchat.dto.ChatMessageDto;
+import cn.yaklo.lanchat.entity.ChatFile;
+import cn.yaklo.lanchat.service.ChatService;
+import cn.yaklo.lanchat.service.FileService;
+import cn.yaklo.lanchat.service.UserService;
+import cn.yaklo.lanchat.util.CursorUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按用户查询消息和文件，按ID游标分页；管理员可以流式导出某个用户的全部消息
+ */
+@Controller
+public class UserHistoryController {
+
+    private static final int MAX_PAGE_SIZE = 200;
+
+    // 导出时每次读取的消息数
+    private static final int EXPORT_PAGE_SIZE = 500;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @GetMapping("/api/users/{userIp}/messages")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getUserMessages(
+            @PathVariable String userIp,
+            @RequestParam(defaultValue = "30") int size,
+            @RequestParam(required = false) String cursor) {
+
+        long beforeId;
+        try {
+            beforeId = decodeCursor(cursor);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+
+        size = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        List<ChatMessageDto> messageDtos = chatService.getMessageDtosByUser(userIp, beforeId, size);
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("messages", messageDtos);
+        response.put("nextCursor", CursorUtil.nextCursor(messageDtos, size));
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/api/users/{userIp}/files")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getUserFiles(
+            @PathVariable String userIp,
+            @RequestParam(defaultValue = "30") int size,
+            @RequestParam(required = false) String cursor) {
+
+        long beforeId;
+        try {
+            beforeId = decodeCursor(cursor);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+
+        size = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        List<ChatFile> chatFiles = fileService.getFilesByUser(userIp, beforeId, size);
+
+        List<Map<String, Object>> files = new ArrayList<>(chatFiles.size());
+        for (ChatFile chatFile : chatFiles) {
+            Map<String, Object> fileInfo = new LinkedHashMap<>();
+            fileInfo.put("id", chatFile.getId());
+            fileInfo.put("originalName", chatFile.getOriginalName());
+            fileInfo.put("fileSize", chatFile.getFileSize());
+            fileInfo.put("contentType", chatFile.getContentType());
+            fileInfo.put("uploadedBy", chatFile.getUploadedBy());
+            fileInfo.put("uploadedAt", chatFile.getUploadedAt());
+            files.add(fileInfo);
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("files", files);
+        response.put("nextCursor", chatFiles.size() < size ? null
+                : CursorUtil.encode(chatFiles.get(chatFiles.size() - 1).getId()));
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * 导出某个用户的全部消息（NDJSON，每行一条，按序号倒序），分页读取、边读边写，不在内存中保存完整列表
+     */
+    @GetMapping("/api/admin/users/{userIp}/messages/export")
+    public ResponseEntity<StreamingResponseBody> exportUserMessages(
+            @PathVariable String userIp,
+            HttpServletRequest request) {
+
+        if (!userService.isAdmin(request)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        StreamingResponseBody body = out -> {
+            try {
+                chatService.forEachMessageDtoByUser(userIp, EXPORT_PAGE_SIZE, page -> writeLines(out, page));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/x-ndjson;charset=UTF-8"))
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        "attachment; filename=\"messages-" + userIp.replaceAll("[^0-9A-Za-z.]", "_") + ".ndjson\"")
+                .body(body);
+    }
+
+    private void writeLines(OutputStream out, List<ChatMessageDto> page) {
+        try {
+            for (ChatMessageDto dto : page) {
+                out.write(objectMapper.writeValueAsBytes(dto));
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long decodeCursor(String cursor) {
+        return cursor != null && !cursor.isEmpty() ? CursorUtil.decode(cursor) : Long.MAX_VALUE;
+    }
+
+    private ResponseEntity<Map<String, Object>> badRequest(String message) {
+        Map<String, Object> error = new HashMap<>();
+        error.put("message", message);
+        return ResponseEntity.badRequest().body(error);
+    }
+}
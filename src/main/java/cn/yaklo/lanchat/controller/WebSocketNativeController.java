@@ -5,22 +5,33 @@ import cn.yaklo.lanchat.entity.ChatFile;
 import cn.yaklo.lanchat.entity.ChatMessage;
 import cn.yaklo.lanchat.service.ChatService;
 import cn.yaklo.lanchat.service.FileService;
+import cn.yaklo.lanchat.util.CursorUtil;
 import cn.yaklo.lanchat.util.IpUtil;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import cn.yaklo.lanchat.websocket.FrameCodec;
+import cn.yaklo.lanchat.websocket.PresenceService;
+import cn.yaklo.lanchat.websocket.SessionRegistry;
+import cn.yaklo.lanchat.websocket.command.ChatCommand;
+import cn.yaklo.lanchat.websocket.command.PresenceSyncCommand;
+import cn.yaklo.lanchat.websocket.command.RecallMessageCommand;
+import cn.yaklo.lanchat.websocket.command.SendMessageCommand;
+import cn.yaklo.lanchat.websocket.command.UpdateUsernameCommand;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 @Component
-public class WebSocketNativeController extends TextWebSocketHandler {
+public class WebSocketNativeController extends AbstractWebSocketHandler {
 
     @Autowired
     private ChatService chatService;
@@ -28,8 +39,23 @@ public class WebSocketNativeController extends TextWebSocketHandler {
     @Autowired
     private FileService fileService;
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private PresenceService presenceService;
+
+    @Autowired
+    private FrameCodec frameCodec;
+
+    @Value("${lanchat.ws.history.default-size:30}")
+    private int defaultHistorySize;
+
+    @Value("${lanchat.ws.history.max-size:200}")
+    private int maxHistorySize;
+
+    @Value("${lanchat.ws.resume.max-gap:200}")
+    private int maxResumeGap;
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
@@ -38,72 +64,115 @@ public class WebSocketNativeController extends TextWebSocketHandler {
 
         // 将客户端信息存储到session属性中
         session.getAttributes().put("clientInfo", clientInfo);
-        sessions.put(session.getId(), session);
+        sessionRegistry.register(session);
+        presenceService.join(session, getClientIp(session), getClientName(session));
 
         // 向客户端推送用户信息更新消息
         sendUserInfoUpdate(session, clientInfo);
 
-        // 发送最近的消息给新连接的客户端
-        List<ChatMessage> recentMessages = chatService.getRecentMessages(30);
-        for (ChatMessage message : recentMessages) {
-            ChatFile file = null;
-            if (message.getFileId() != null) {
-                file = fileService.getFileById(message.getFileId());
-            }
-            ChatMessageDto messageDto = ChatMessageDto.fromEntity(message, file);
-            sendMessage(session, messageDto);
+        // 断线重连只补发缺失的消息，新连接用一个批量帧发送最近的消息
+        Object resumeAfter = session.getAttributes().get("resumeAfter");
+        if (resumeAfter instanceof Long) {
+            sendResumeBatch(session, (Long) resumeAfter);
+        } else {
+            sendHistoryBatch(session);
         }
 
-        // 广播在线用户数更新
-        broadcastOnlineUserCount();
+        // 发送在线用户快照，之后只接收增量
+        presenceService.sendSnapshot(session);
 
-        System.out.println("✓ WebSocket连接建立: " + clientInfo);
+        System.out.println("✓ WebSocket连接建立: " + clientInfo + " 协议: " + frameCodec.protocolOf(session));
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-        sessions.remove(session.getId());
+        sessionRegistry.unregister(session);
+        presenceService.leave(session);
         System.out.println("WebSocket连接关闭: " + session.getId());
-
-        // 广播在线用户数更新
-        broadcastOnlineUserCount();
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        ChatCommand command;
+        try {
+            command = frameCodec.decodeCommand(message);
+        } catch (JsonProcessingException e) {
+            rejectFrame(session, e);
+            return;
+        }
+        handleCommand(session, command);
+    }
+
+    /**
+     * 二进制协议的客户端可以用CBOR帧发送命令，命令格式与JSON相同
+     */
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        ChatCommand command;
         try {
-            Map<String, Object> payload = objectMapper.readValue(message.getPayload(), Map.class);
-            String type = (String) payload.get("type");
-
-            if ("sendMessage".equals(type)) {
-                handleSendMessage(session, payload);
-            } else if ("recallMessage".equals(type)) {
-                handleRecallMessage(session, payload);
-            } else if ("updateUsername".equals(type)) {
-                handleUsernameUpdate(session, payload);
+            command = frameCodec.decodeCommand(message);
+        } catch (JsonProcessingException e) {
+            rejectFrame(session, e);
+            return;
+        }
+        handleCommand(session, command);
+    }
+
+    private void handleCommand(WebSocketSession session, ChatCommand command) throws Exception {
+        try {
+            if (command instanceof SendMessageCommand) {
+                handleSendMessage(session, (SendMessageCommand) command);
+            } else if (command instanceof RecallMessageCommand) {
+                handleRecallMessage(session, (RecallMessageCommand) command);
+            } else if (command instanceof UpdateUsernameCommand) {
+                handleUsernameUpdate(session, (UpdateUsernameCommand) command);
+            } else if (command instanceof PresenceSyncCommand) {
+                // 客户端发现增量版本不连续，重新发送快照
+                presenceService.sendSnapshot(session);
             }
+        } catch (IllegalStateException e) {
+            // 消息写入队列已满等可恢复的拒绝，原因直接告诉客户端
+            System.err.println("拒绝WebSocket命令: " + e.getMessage());
+            sendError(session, e.getMessage());
         } catch (Exception e) {
-            System.err.println("处理WebSocket消息错误: " + e.getMessage());
-            e.printStackTrace();
+            System.err.println("处理WebSocket命令错误: " + e.getMessage());
+            sendError(session, "处理消息失败");
         }
     }
 
-    private void handleSendMessage(WebSocketSession session, Map<String, Object> payload) throws Exception {
+    /**
+     * 无法解析的帧（格式错误、未知type、字段类型不符）直接回复错误，不进入业务处理
+     */
+    private void rejectFrame(WebSocketSession session, JsonProcessingException e) throws Exception {
+        System.err.println("无效的WebSocket帧: " + session.getId() + " - " + e.getOriginalMessage());
+        sendError(session, "无效的消息格式");
+    }
+
+    private void sendError(WebSocketSession session, String message) throws Exception {
+        Map<String, Object> error = new HashMap<>();
+        error.put("type", "error");
+        error.put("message", message);
+        sessionRegistry.send(session, error);
+    }
+
+    private void handleSendMessage(WebSocketSession session, SendMessageCommand command) throws Exception {
         // 从WebSocket session中获取真实的客户端信息
         String clientIp = getClientIp(session);
         String clientName = getClientName(session);
 
-        // 从payload中获取消息信息
-        String content = (String) payload.get("content");
-        String messageType = (String) payload.get("messageType");
-        Long fileId = payload.get("fileId") != null ? Long.valueOf(payload.get("fileId").toString()) : null;
+        String content = command.getContent();
+        Long fileId = command.getFileId();
+        if (content == null) {
+            sendError(session, "消息内容不能为空");
+            return;
+        }
 
         // 简化的调试信息
         System.out.println("接收到消息: " + clientName + " (" + clientIp + ") - " + content);
 
         // 直接使用IP作为唯一标识，简化保存逻辑
         ChatMessage savedMessage = chatService.saveMessage(clientIp, clientIp, clientName, content,
-                ChatMessage.MessageType.valueOf(messageType), fileId);
+                command.getMessageType(), fileId);
 
         ChatFile file = null;
         if (fileId != null) {
@@ -116,37 +185,73 @@ public class WebSocketNativeController extends TextWebSocketHandler {
         broadcastMessage(messageDto);
     }
 
-    private void handleRecallMessage(WebSocketSession session, Map<String, Object> payload) throws Exception {
-        Long messageId = Long.valueOf(payload.get("messageId").toString());
-        String userIp = (String) payload.get("userIp");
+    private void handleRecallMessage(WebSocketSession session, RecallMessageCommand command) throws Exception {
+        if (command.getMessageId() == null) {
+            sendError(session, "缺少消息ID");
+            return;
+        }
 
-        ChatMessage recalledMessage = chatService.recallMessage(messageId, userIp);
+        // 只能撤回当前连接IP发送的消息
+        ChatMessage recalledMessage = chatService.recallMessage(command.getMessageId(), getClientIp(session));
         if (recalledMessage != null) {
             ChatMessageDto messageDto = ChatMessageDto.fromEntity(recalledMessage, null);
             broadcastMessage(messageDto);
         }
     }
 
-    private void sendMessage(WebSocketSession session, ChatMessageDto message) throws Exception {
-        if (session.isOpen()) {
-            String jsonMessage = objectMapper.writeValueAsString(message);
-            session.sendMessage(new TextMessage(jsonMessage));
+    /**
+     * 发送历史消息批量帧，条数由握手参数history指定
+     */
+    private void sendHistoryBatch(WebSocketSession session) throws Exception {
+        int historySize = defaultHistorySize;
+        Object requested = session.getAttributes().get("historySize");
+        if (requested instanceof Integer) {
+            historySize = Math.max(0, Math.min((Integer) requested, maxHistorySize));
         }
+
+        List<ChatMessageDto> messages = historySize > 0
+                ? chatService.getRecentMessageDtos(historySize)
+                : Collections.<ChatMessageDto>emptyList();
+
+        Map<String, Object> batch = new HashMap<>();
+        batch.put("type", "historyBatch");
+        batch.put("requested", historySize);
+        batch.put("messages", messages);
+        batch.put("nextCursor", CursorUtil.nextCursor(messages, historySize));
+        batch.put("totalCount", chatService.getTotalMessageCount());
+
+        sessionRegistry.send(session, batch);
     }
 
-    private void broadcastMessage(ChatMessageDto message) throws Exception {
-        String jsonMessage = objectMapper.writeValueAsString(message);
-        TextMessage textMessage = new TextMessage(jsonMessage);
-
-        for (WebSocketSession session : sessions.values()) {
-            if (session.isOpen()) {
-                try {
-                    session.sendMessage(textMessage);
-                } catch (Exception e) {
-                    System.err.println("发送消息失败: " + e.getMessage());
-                }
-            }
+    /**
+     * 补发客户端断线期间错过的消息（since之后的全部消息，按序号升序）
+     * 缺口超过上限，或since比服务器已分配的序号还大（数据库被重置），通知客户端改为分页重新加载
+     */
+    private void sendResumeBatch(WebSocketSession session, long since) throws Exception {
+        List<ChatMessageDto> messages = since <= chatService.getLastMessageId()
+                ? chatService.getMessageDtosAfter(since, maxResumeGap + 1)
+                : null;
+
+        if (messages == null || messages.size() > maxResumeGap) {
+            Map<String, Object> resync = new HashMap<>();
+            resync.put("type", "resyncRequired");
+            resync.put("since", since);
+            sessionRegistry.send(session, resync);
+            System.out.println("重连缺口过大或无效，要求客户端重新加载: since=" + since);
+            return;
         }
+
+        Map<String, Object> batch = new HashMap<>();
+        batch.put("type", "resumeBatch");
+        batch.put("since", since);
+        batch.put("messages", messages);
+        sessionRegistry.send(session, batch);
+        System.out.println("重连补发 " + messages.size() + " 条消息: since=" + since);
+    }
+
+    private void broadcastMessage(ChatMessageDto message) throws Exception {
+        // 每种协议只序列化一次，所有会话共享同一个消息对象
+        sessionRegistry.broadcast(message);
     }
 
     private String extractClientInfo(WebSocketSession session) {
@@ -226,44 +331,21 @@ public class WebSocketNativeController extends TextWebSocketHandler {
             userInfoUpdate.put("ip", ip);
             userInfoUpdate.put("name", name);
 
-            String jsonMessage = objectMapper.writeValueAsString(userInfoUpdate);
-            TextMessage textMessage = new TextMessage(jsonMessage);
-
-            if (session.isOpen()) {
-                session.sendMessage(textMessage);
+            if (sessionRegistry.send(session, userInfoUpdate)) {
                 System.out.println("已向客户端推送用户信息更新: IP=" + ip + ", Name=" + name);
             }
         }
     }
 
     public int getConnectedCount() {
-        return sessions.size();
-    }
-
-    private void broadcastOnlineUserCount() throws Exception {
-        Map<String, Object> userCountMessage = new HashMap<>();
-        userCountMessage.put("type", "userCount");
-        userCountMessage.put("count", sessions.size());
-
-        String jsonMessage = objectMapper.writeValueAsString(userCountMessage);
-        TextMessage textMessage = new TextMessage(jsonMessage);
-
-        for (WebSocketSession session : sessions.values()) {
-            if (session.isOpen()) {
-                try {
-                    session.sendMessage(textMessage);
-                } catch (Exception e) {
-                    System.err.println("发送在线用户数失败: " + e.getMessage());
-                }
-            }
-        }
+        return sessionRegistry.getSessionCount();
     }
 
     /**
      * 处理用户名更新
      */
-    private void handleUsernameUpdate(WebSocketSession session, Map<String, Object> payload) throws Exception {
-        String newUserName = (String) payload.get("userName");
+    private void handleUsernameUpdate(WebSocketSession session, UpdateUsernameCommand command) throws Exception {
+        String newUserName = command.getUserName();
 
         // 验证用户名
         if (newUserName != null && !newUserName.trim().isEmpty() &&
@@ -271,14 +353,14 @@ public class WebSocketNativeController extends TextWebSocketHandler {
 
             // 更新session中的用户名
             session.getAttributes().put("clientName", newUserName);
+            presenceService.rename(session, newUserName);
 
             // 向客户端确认更新
             Map<String, Object> response = new HashMap<>();
             response.put("type", "usernameUpdateSuccess");
             response.put("userName", newUserName);
 
-            String jsonResponse = objectMapper.writeValueAsString(response);
-            session.sendMessage(new TextMessage(jsonResponse));
+            sessionRegistry.send(session, response);
 
             System.out.println("用户名更新成功: " + newUserName);
         } else {
@@ -287,8 +369,7 @@ public class WebSocketNativeController extends TextWebSocketHandler {
             errorResponse.put("type", "usernameUpdateError");
             errorResponse.put("message", "用户名不能为空，不能超过20个字符，且不能包含空格");
 
-            String jsonErrorResponse = objectMapper.writeValueAsString(errorResponse);
-            session.sendMessage(new TextMessage(jsonErrorResponse));
+            sessionRegistry.send(session, errorResponse);
         }
     }
 }
\ No newline at end of file
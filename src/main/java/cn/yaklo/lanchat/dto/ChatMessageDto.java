@@ -2,10 +2,14 @@ package cn.yaklo.lanchat.dto;
 
 import cn.yaklo.lanchat.entity.ChatFile;
 import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.service.ThumbnailService;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 @Data
@@ -24,6 +28,15 @@ public class ChatMessageDto {
     private Long fileId;
     private String fileName;
     private Long fileSize;
+    // 图片缩略图（/api/file/{id}/thumb）的宽高，客户端据此预留位置；非图片为空
+    private Integer thumbWidth;
+    private Integer thumbHeight;
+
+    // 二进制协议使用的毫秒时间戳，JSON中不输出
+    @JsonIgnore
+    private Long timestampMillis;
+    @JsonIgnore
+    private Long recalledAtMillis;
 
     public static ChatMessageDto fromEntity(ChatMessage message,
                                           ChatFile file) {
@@ -34,11 +47,13 @@ public class ChatMessageDto {
         dto.setUserName(message.getUserName());
         dto.setContent(message.getContent());
         dto.setTimestamp(message.getTimestamp().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+        dto.setTimestampMillis(toEpochMillis(message.getTimestamp()));
         dto.setMessageType(message.getMessageType().name());
         dto.setRecalled(message.getRecalled());
 
         if (message.getRecalledAt() != null) {
             dto.setRecalledAt(message.getRecalledAt().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+            dto.setRecalledAtMillis(toEpochMillis(message.getRecalledAt()));
         }
 
         dto.setFileId(message.getFileId());
@@ -46,8 +61,19 @@ public class ChatMessageDto {
         if (file != null) {
             dto.setFileName(file.getOriginalName());
             dto.setFileSize(file.getFileSize());
+            if (file.getImageWidth() != null && file.getImageHeight() != null
+                    && ThumbnailService.isSupported(file.getContentType())) {
+                int[] thumbSize = ThumbnailService.scaledSize(file.getImageWidth(), file.getImageHeight(),
+                        ThumbnailService.THUMB_SIZE);
+                dto.setThumbWidth(thumbSize[0]);
+                dto.setThumbHeight(thumbSize[1]);
+            }
         }
 
         return dto;
     }
+
+    private static long toEpochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
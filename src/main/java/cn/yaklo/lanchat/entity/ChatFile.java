@@ -8,14 +8,28 @@ import javax.persistence.*;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "chat_files")
+@Table(name = "chat_files", indexes = {
+        @Index(name = "idx_chat_files_stored_name", columnList = "stored_name"),
+        // 按上传者分页：WHERE uploaded_by = ? AND id < ? ORDER BY id DESC
+        @Index(name = "idx_chat_files_uploaded_by_id", columnList = "uploaded_by, id"),
+        // 秒传按内容查找，删除时检查物理文件是否还有引用
+        @Index(name = "idx_chat_files_content_hash", columnList = "content_hash"),
+        @Index(name = "idx_chat_files_file_path", columnList = "file_path")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class ChatFile {
 
+    public static final int ID_ALLOCATION_SIZE = 50;
+
+    // 物理文件以gzip压缩保存
+    public static final String ENCODING_GZIP = "gzip";
+
+    // 序列按50个一组预取ID，插入可以走JDBC批处理
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "chat_file_seq")
+    @SequenceGenerator(name = "chat_file_seq", sequenceName = "chat_file_seq", allocationSize = ChatFile.ID_ALLOCATION_SIZE)
     private Long id;
 
     @Column(name = "original_name", nullable = false, length = 255)
@@ -33,6 +47,22 @@ public class ChatFile {
     @Column(name = "content_type", length = 100)
     private String contentType;
 
+    // 文件内容的SHA-256（十六进制），用作下载的强ETag和去重的键；旧数据为空，首次下载时补算
+    // 相同内容只保存一份物理文件（以摘要命名），多条记录的filePath相同，每条记录是一个引用
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
+    // 物理文件的存储编码，为空表示原样保存；fileSize始终是原始大小
+    @Column(name = "storage_encoding", length = 16)
+    private String storageEncoding;
+
+    // 图片的原始宽高，上传时读取图片头得到，非图片为空
+    @Column(name = "image_width")
+    private Integer imageWidth;
+
+    @Column(name = "image_height")
+    private Integer imageHeight;
+
     @Column(name = "uploaded_by", nullable = false, length = 45)
     private String uploadedBy;
 
@@ -1,21 +1,32 @@
 package cn.yaklo.lanchat.entity;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.domain.Persistable;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "chat_messages")
+@Table(name = "chat_messages", indexes = {
+        // 按序号倒序翻页：WHERE is_recalled = false AND id < ? ORDER BY id DESC
+        @Index(name = "idx_chat_messages_recalled_id", columnList = "is_recalled, id"),
+        @Index(name = "idx_chat_messages_timestamp", columnList = "timestamp"),
+        // 按用户分页：WHERE user_ip = ? AND id < ? ORDER BY id DESC
+        @Index(name = "idx_chat_messages_user_id", columnList = "userIp, id")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
-public class ChatMessage {
+public class ChatMessage implements Persistable<Long> {
 
+    // ID即MessageSequencer分配的消息序号，排序、分页和客户端去重都以它为准；入库异步批量进行
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
     @Column(nullable = false, length = 45)
@@ -46,6 +57,13 @@ public class ChatMessage {
     @Column(name = "file_id")
     private Long fileId;
 
+    // 是否尚未入库，决定save()执行insert还是merge
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    private boolean newEntity = true;
+
     public enum MessageType {
         TEXT, FILE, SYSTEM
     }
@@ -70,6 +88,20 @@ public class ChatMessage {
         this.fileId = fileId;
     }
 
+    @Override
+    public boolean isNew() {
+        return newEntity;
+    }
+
+    /**
+     * 标记为已入库，之后save()按更新处理
+     */
+    @PostLoad
+    @PostPersist
+    public void markNotNew() {
+        this.newEntity = false;
+    }
+
     public void recall() {
         this.recalled = true;
         this.recalledAt = LocalDateTime.now();
@@ -0,0 +1,81 @@
+package cn.yaklo.lanchat.filter;
+
+import cn.yaklo.lanchat.service.CompressionStats;
+import cn.yaklo.lanchat.util.GzipUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * JSON接口的gzip压缩
+ * 历史消息等接口中用户名、IP、字段名大量重复，压缩率很高；超过阈值才压缩，并记录压缩率。
+ * 匹配路径的响应不论是否压缩都带Vary: Accept-Encoding，避免共享缓存把一种编码的响应交给另一种客户端
+ */
+@Component
+public class GzipResponseFilter extends OncePerRequestFilter {
+
+    @Autowired
+    private CompressionStats compressionStats;
+
+    @Value("${lanchat.http.compression.enabled:true}")
+    private boolean enabled;
+
+    @Value("${lanchat.http.compression.min-size:1024}")
+    private int minSize;
+
+    @Value("${lanchat.http.compression.paths:/api/messages}")
+    private String[] paths;
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!enabled) {
+            return true;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (String pattern : paths) {
+            if (pathMatcher.match(pattern.trim(), path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (!GzipUtil.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        ContentCachingResponseWrapper wrapper = new ContentCachingResponseWrapper(response);
+        chain.doFilter(request, wrapper);
+
+        byte[] body = wrapper.getContentAsByteArray();
+        if (body.length < minSize || response.isCommitted() || response.getHeader(HttpHeaders.CONTENT_ENCODING) != null) {
+            compressionStats.recordSkipped("http", body.length);
+            wrapper.copyBodyToResponse();
+            return;
+        }
+
+        byte[] compressed = GzipUtil.gzip(body);
+        compressionStats.recordCompressed("http", body.length, compressed.length);
+
+        response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        response.setContentLength(compressed.length);
+        response.getOutputStream().write(compressed);
+    }
+}
@@ -1,11 +1,15 @@
 package cn.yaklo.lanchat.interceptor;
 
+import cn.yaklo.lanchat.websocket.ChatHandshakeHandler;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.server.ServerHttpRequest;
 import org.springframework.http.server.ServerHttpResponse;
 import org.springframework.http.server.ServletServerHttpRequest;
 import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.servlet.http.HttpSession;
 import java.util.Map;
@@ -13,6 +17,9 @@ import java.util.Map;
 @Component
 public class WebSocketHandshakeInterceptor implements HandshakeInterceptor {
 
+    @Autowired
+    private ChatHandshakeHandler handshakeHandler;
+
     @Override
     public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
                                  WebSocketHandler wsHandler, Map<String, Object> attributes) throws Exception {
@@ -28,6 +35,31 @@ public class WebSocketHandshakeInterceptor implements HandshakeInterceptor {
         attributes.put("clientIp", clientIp);
         attributes.put("handshakeTime", System.currentTimeMillis());
 
+        // 客户端是否选择了应用层压缩
+        attributes.put("compression", handshakeHandler.isCompressionRequested(request));
+
+        // 客户端希望在连接时收到的历史消息条数
+        MultiValueMap<String, String> params = UriComponentsBuilder.fromUri(request.getURI()).build()
+                .getQueryParams();
+        String history = params.getFirst("history");
+        if (history != null) {
+            try {
+                attributes.put("historySize", Integer.parseInt(history));
+            } catch (NumberFormatException e) {
+                System.err.println("无效的history参数: " + history);
+            }
+        }
+
+        // 断线重连时客户端已收到的最大消息ID，服务器只补发之后的消息
+        String since = params.getFirst("since");
+        if (since != null) {
+            try {
+                attributes.put("resumeAfter", Long.parseLong(since));
+            } catch (NumberFormatException e) {
+                System.err.println("无效的since参数: " + since);
+            }
+        }
+
         // 尝试从HTTP Session中获取自定义用户名
         if (request instanceof ServletServerHttpRequest) {
             ServletServerHttpRequest servletRequest = (ServletServerHttpRequest) request;
@@ -1,8 +1,13 @@
 package cn.yaklo.lanchat.repository;
 
 import cn.yaklo.lanchat.entity.ChatFile;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 import java.util.Optional;
@@ -12,7 +17,47 @@ public interface ChatFileRepository extends JpaRepository<ChatFile, Long> {
 
     Optional<ChatFile> findByStoredName(String storedName);
 
-    List<ChatFile> findByUploadedByOrderByUploadedAtDesc(String uploadedBy);
+    /**
+     * 按ID分页查询某个用户上传的文件
+     */
+    List<ChatFile> findByUploadedByAndIdLessThanOrderByIdDesc(String uploadedBy, Long id, Pageable pageable);
 
-    boolean existsByStoredName(String storedName);
+    Optional<ChatFile> findFirstByContentHash(String contentHash);
+
+    /**
+     * 是否还有文件记录引用该物理文件
+     */
+    boolean existsByFilePath(String filePath);
+
+    /**
+     * 按ID分批遍历全部文件记录（目录迁移、一致性检查）
+     */
+    List<ChatFile> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+    /**
+     * 按ID分批遍历没有内容摘要的旧文件记录
+     */
+    List<ChatFile> findByContentHashIsNullAndIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+    /**
+     * 为旧记录补写内容摘要，已有摘要或已删除的记录不受影响
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE ChatFile cf SET cf.contentHash = :contentHash WHERE cf.id = :id AND cf.contentHash IS NULL")
+    int updateContentHash(@Param("id") Long id, @Param("contentHash") String contentHash);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE ChatFile cf SET cf.filePath = :newPath WHERE cf.filePath = :oldPath")
+    int updateFilePath(@Param("oldPath") String oldPath, @Param("newPath") String newPath);
+
+    /**
+     * 按上传者统计文件数和总大小，返回 [uploadedBy, count, sum(fileSize)]
+     */
+    @Query("SELECT cf.uploadedBy, COUNT(cf), SUM(cf.fileSize) FROM ChatFile cf GROUP BY cf.uploadedBy")
+    List<Object[]> sumFilesByUser();
+
+    @Query("SELECT MAX(cf.id) FROM ChatFile cf")
+    Long findMaxId();
 }
\ No newline at end of file
@@ -3,29 +3,88 @@ package cn.yaklo.lanchat.repository;
 import cn.yaklo.lanchat.entity.ChatMessage;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
 
 @Repository
 public interface ChatMessageRepository extends JpaRepository<ChatMessage, Long> {
 
-    @Query("SELECT cm FROM ChatMessage cm WHERE cm.recalled = false ORDER BY cm.timestamp DESC")
-    List<ChatMessage> findRecentMessages(Pageable pageable);
+    /**
+     * 查询指定ID之后的消息（按序号升序），用于断线重连时补发
+     */
+    @Query("SELECT cm FROM ChatMessage cm WHERE cm.recalled = false AND cm.id > :messageId ORDER BY cm.id ASC")
+    List<ChatMessage> findMessagesAfterId(@Param("messageId") Long messageId, Pageable pageable);
 
-    @Query("SELECT cm FROM ChatMessage cm WHERE cm.recalled = false AND cm.timestamp < :timestamp ORDER BY cm.timestamp DESC")
-    List<ChatMessage> findMessagesBefore(@Param("timestamp") LocalDateTime timestamp, Pageable pageable);
+    /**
+     * 按序号分页：查询指定ID之前的消息，消息ID即定序器分配的序号
+     */
+    @Query("SELECT cm FROM ChatMessage cm WHERE cm.recalled = false AND cm.id < :messageId ORDER BY cm.id DESC")
+    List<ChatMessage> findMessagesBeforeId(@Param("messageId") Long messageId, Pageable pageable);
 
-    List<ChatMessage> findByUserIpOrderByTimestampDesc(String userIp);
+    @Query("SELECT cm FROM ChatMessage cm WHERE cm.recalled = false AND cm.timestamp < :timestamp ORDER BY cm.id DESC")
+    List<ChatMessage> findMessagesBefore(@Param("timestamp") LocalDateTime timestamp, Pageable pageable);
 
-    @Query("SELECT cm FROM ChatMessage cm WHERE cm.recalled = false AND cm.id = :messageId AND cm.userIp = :userIp")
-    ChatMessage findActiveMessageByIdAndUserIp(@Param("messageId") Long messageId, @Param("userIp") String userIp);
+    /**
+     * 按序号分页查询某个用户的消息（包含已撤回的）
+     */
+    @Query("SELECT cm FROM ChatMessage cm WHERE cm.userIp = :userIp AND cm.id < :messageId ORDER BY cm.id DESC")
+    List<ChatMessage> findByUserBeforeId(@Param("userIp") String userIp, @Param("messageId") Long messageId,
+                                         Pageable pageable);
 
     long countByRecalledFalse();
 
-    @Query("SELECT cm FROM ChatMessage cm WHERE cm.recalled = false ORDER BY cm.timestamp ASC")
-    List<ChatMessage> findAllActiveMessagesOrderByTimestamp();
+    /**
+     * 按用户统计未撤回的消息数，返回 [userIp, count]
+     */
+    @Query("SELECT cm.userIp, COUNT(cm) FROM ChatMessage cm WHERE cm.recalled = false GROUP BY cm.userIp")
+    List<Object[]> countActiveMessagesByUser();
+
+    /**
+     * 以游标方式逐行读取指定ID之后的未撤回消息，用于导出；调用方需在只读事务中消费并及时关闭Stream
+     */
+    @QueryHints({
+            @QueryHint(name = HINT_FETCH_SIZE, value = "500"),
+            @QueryHint(name = HINT_READONLY, value = "true"),
+            @QueryHint(name = HINT_CACHEABLE, value = "false")
+    })
+    @Query("SELECT cm FROM ChatMessage cm WHERE cm.recalled = false AND cm.id > :messageId ORDER BY cm.id ASC")
+    Stream<ChatMessage> streamMessagesAfterId(@Param("messageId") Long messageId);
+
+    /**
+     * 最新的消息（包含已撤回的），用于预热内存缓冲区
+     */
+    List<ChatMessage> findAllByOrderByIdDesc(Pageable pageable);
+
+    /**
+     * 按ID顺序分页读取全部消息（包含已撤回的），用于迁移到分段日志
+     */
+    List<ChatMessage> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+    /**
+     * 最旧的消息（包含已撤回的），用于归档
+     */
+    List<ChatMessage> findAllByOrderByIdAsc(Pageable pageable);
+
+    /**
+     * 删除已写入归档文件的消息
+     */
+    @Modifying
+    @Query("DELETE FROM ChatMessage cm WHERE cm.id <= :maxId")
+    int deleteArchived(@Param("maxId") Long maxId);
+
+    @Query("SELECT MAX(cm.id) FROM ChatMessage cm")
+    Long findMaxId();
 }
\ No newline at end of file
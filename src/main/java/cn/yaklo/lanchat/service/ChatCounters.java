@@ -0,0 +1,148 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatFile;
+import cn.yaklo.lanchat.repository.ChatFileRepository;
+import cn.yaklo.lanchat.store.MessageStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消息与文件计数器
+ * 启动时用聚合查询加载一次，之后在保存、撤回、上传、删除时增量更新，读取不再执行COUNT查询
+ */
+@Component
+public class ChatCounters {
+
+    @Autowired
+    private MessageStore messageStore;
+
+    @Autowired
+    private ChatFileRepository chatFileRepository;
+
+    private final AtomicLong totalMessages = new AtomicLong();
+    private final AtomicLong activeMessages = new AtomicLong();
+    private final AtomicLong fileCount = new AtomicLong();
+
+    // 各文件记录的原始大小之和；相同内容共用一个物理文件且可能压缩保存，不等于实际占用的磁盘空间
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    // 用户IP -> 计数
+    private final Map<String, UserCounter> users = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        totalMessages.set(messageStore.count());
+        activeMessages.set(messageStore.countActive());
+        for (Map.Entry<String, Long> entry : messageStore.countActiveByUser().entrySet()) {
+            user(entry.getKey()).messages.set(entry.getValue());
+        }
+
+        for (Object[] row : chatFileRepository.sumFilesByUser()) {
+            UserCounter counter = user((String) row[0]);
+            long files = (Long) row[1];
+            long bytes = row[2] != null ? ((Number) row[2]).longValue() : 0L;
+            counter.files.set(files);
+            counter.bytes.set(bytes);
+            fileCount.addAndGet(files);
+            uploadedBytes.addAndGet(bytes);
+        }
+
+        System.out.println("计数器已加载: 消息 " + activeMessages.get() + "/" + totalMessages.get()
+                + " 条, 文件 " + fileCount.get() + " 个, 原始大小 " + uploadedBytes.get() + " 字节");
+    }
+
+    public void onMessageSaved(String userIp) {
+        totalMessages.incrementAndGet();
+        activeMessages.incrementAndGet();
+        user(userIp).messages.incrementAndGet();
+    }
+
+    public void onMessageRecalled(String userIp) {
+        activeMessages.decrementAndGet();
+        user(userIp).messages.decrementAndGet();
+    }
+
+    public void onFileUploaded(ChatFile file) {
+        long size = file.getFileSize() != null ? file.getFileSize() : 0L;
+        fileCount.incrementAndGet();
+        uploadedBytes.addAndGet(size);
+        UserCounter counter = user(file.getUploadedBy());
+        counter.files.incrementAndGet();
+        counter.bytes.addAndGet(size);
+    }
+
+    public void onFileDeleted(ChatFile file) {
+        long size = file.getFileSize() != null ? file.getFileSize() : 0L;
+        fileCount.decrementAndGet();
+        uploadedBytes.addAndGet(-size);
+        UserCounter counter = user(file.getUploadedBy());
+        counter.files.decrementAndGet();
+        counter.bytes.addAndGet(-size);
+    }
+
+    /**
+     * 未撤回的消息数
+     */
+    public long getActiveMessages() {
+        return activeMessages.get();
+    }
+
+    public long getTotalMessages() {
+        return totalMessages.get();
+    }
+
+    public long getFileCount() {
+        return fileCount.get();
+    }
+
+    /**
+     * 上传文件的原始大小之和（逻辑大小）
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    /**
+     * @param includeUsers 是否包含按用户IP的计数，只应返回给管理员
+     */
+    public Map<String, Object> snapshot(boolean includeUsers) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("totalMessages", totalMessages.get());
+        stats.put("activeMessages", activeMessages.get());
+        stats.put("recalledMessages", totalMessages.get() - activeMessages.get());
+        stats.put("files", fileCount.get());
+        stats.put("uploadedBytes", uploadedBytes.get());
+        if (!includeUsers) {
+            return stats;
+        }
+
+        Map<String, Object> perUser = new TreeMap<>();
+        for (Map.Entry<String, UserCounter> entry : users.entrySet()) {
+            UserCounter counter = entry.getValue();
+            Map<String, Object> userStats = new LinkedHashMap<>();
+            userStats.put("messages", counter.messages.get());
+            userStats.put("files", counter.files.get());
+            userStats.put("uploadedBytes", counter.bytes.get());
+            perUser.put(entry.getKey(), userStats);
+        }
+        stats.put("users", perUser);
+        return stats;
+    }
+
+    private UserCounter user(String userIp) {
+        return users.computeIfAbsent(userIp, key -> new UserCounter());
+    }
+
+    private static class UserCounter {
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+    }
+}
@@ -1,68 +1,417 @@
 package cn.yaklo.lanchat.service;
 
+import cn.yaklo.lanchat.dto.ChatMessageDto;
+import cn.yaklo.lanchat.entity.ChatFile;
 import cn.yaklo.lanchat.entity.ChatMessage;
-import cn.yaklo.lanchat.repository.ChatMessageRepository;
+import cn.yaklo.lanchat.store.MessageStore;
+import cn.yaklo.lanchat.util.SearchTextUtil;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
+/**
+ * 聊天消息服务
+ * 保存消息时由MessageSequencer分配序号并交给MessageWriteBehind异步入库，调用方可以立即广播；
+ * 最近的消息由MessageHistoryRing在内存中提供，超出范围才查询MessageStore，并把尚未入库的消息合并进查询结果
+ */
 @Service
 public class ChatService {
 
+    // 与查询一致：按序号（ID）倒序
+    private static final Comparator<ChatMessage> NEWEST_FIRST = Comparator
+            .comparing(ChatMessage::getId)
+            .reversed();
+
+    @Autowired
+    private MessageStore messageStore;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private MessageWriteBehind messageWriteBehind;
+
+    @Autowired
+    private MessageSequencer messageSequencer;
+
     @Autowired
-    private ChatMessageRepository chatMessageRepository;
+    private MessageHistoryRing historyRing;
+
+    @Autowired
+    private ChatCounters chatCounters;
+
+    @Autowired
+    private MessageSearchIndex searchIndex;
+
+    // 撤回按消息ID分段加锁，同一条消息的检查和撤回是原子的
+    private final Object[] recallLocks = new Object[64];
+
+    {
+        for (int i = 0; i < recallLocks.length; i++) {
+            recallLocks[i] = new Object();
+        }
+    }
 
     public ChatMessage saveMessage(String userIp, String userName, String content,
                                  ChatMessage.MessageType messageType, Long fileId) {
-        ChatMessage message = new ChatMessage(userIp, userName, content, messageType);
-        if (fileId != null) {
-            message.setFileId(fileId);
-        }
-        return chatMessageRepository.save(message);
+        // unique_id不允许为空，与原生WebSocket一样使用IP作为唯一标识
+        return saveMessage(userIp, userIp, userName, content, messageType, fileId);
     }
 
     public ChatMessage saveMessage(String userIp, String uniqueId, String userName, String content,
                                  ChatMessage.MessageType messageType, Long fileId) {
         ChatMessage message = new ChatMessage(userIp, uniqueId, userName, content, messageType, fileId);
-        return chatMessageRepository.save(message);
+        messageSequencer.accept(message);
+        historyRing.append(message);
+        chatCounters.onMessageSaved(userIp);
+        searchIndex.add(message);
+        return message;
     }
 
     public List<ChatMessage> getRecentMessages(int limit) {
-        Pageable pageable = PageRequest.of(0, limit);
-        return chatMessageRepository.findRecentMessages(pageable);
+        List<ChatMessage> cached = historyRing.newestBefore(Long.MAX_VALUE, message -> true, limit);
+        if (cached != null) {
+            return cached;
+        }
+        List<ChatMessage> pending = messageWriteBehind.getPendingMessages();
+        List<ChatMessage> stored = messageStore.findActiveBefore(Long.MAX_VALUE, storeLimit(pending, limit));
+        return mergePending(stored, pending, message -> true, NEWEST_FIRST, limit);
+    }
+
+    /**
+     * 获取最近的消息DTO（按序号倒序），优先从内存缓冲区读取
+     */
+    public List<ChatMessageDto> getRecentMessageDtos(int limit) {
+        List<ChatMessage> cached = historyRing.newestBefore(Long.MAX_VALUE, message -> true, limit);
+        if (cached != null) {
+            return toDtos(cached);
+        }
+        List<ChatMessage> pending = messageWriteBehind.getPendingMessages();
+        List<ChatMessage> stored = messageStore.findActiveBefore(Long.MAX_VALUE, storeLimit(pending, limit));
+        return toDtos(mergePending(stored, pending, message -> true, NEWEST_FIRST, limit));
+    }
+
+    /**
+     * 获取指定ID之后的消息DTO（按序号升序），最多limit条
+     */
+    public List<ChatMessageDto> getMessageDtosAfter(long messageId, int limit) {
+        List<ChatMessage> cached = historyRing.oldestAfter(messageId, limit);
+        if (cached != null) {
+            return toDtos(cached);
+        }
+        List<ChatMessage> pending = messageWriteBehind.getPendingMessages();
+        List<ChatMessage> stored = messageStore.findActiveAfter(messageId, storeLimit(pending, limit));
+        return toDtos(mergePending(stored, pending, message -> message.getId() > messageId,
+                NEWEST_FIRST.reversed(), limit));
+    }
+
+    /**
+     * 最后分配的消息序号
+     */
+    public long getLastMessageId() {
+        return messageSequencer.getLastSequence();
+    }
+
+    /**
+     * 获取指定序号之前的消息DTO（按序号倒序），用于分页加载历史消息
+     */
+    public List<ChatMessageDto> getMessageDtosBeforeId(long messageId, int limit) {
+        List<ChatMessage> cached = historyRing.newestBefore(messageId, message -> true, limit);
+        if (cached != null) {
+            return toDtos(cached);
+        }
+        List<ChatMessage> pending = messageWriteBehind.getPendingMessages();
+        List<ChatMessage> stored = messageStore.findActiveBefore(messageId, storeLimit(pending, limit));
+        return toDtos(mergePending(stored, pending, message -> message.getId() < messageId,
+                NEWEST_FIRST, limit));
+    }
+
+    /**
+     * 获取指定时间之前的消息DTO（按序号倒序），兼容按时间戳分页的旧客户端
+     */
+    public List<ChatMessageDto> getMessageDtosBefore(LocalDateTime timestamp, int limit) {
+        Predicate<ChatMessage> before = message -> message.getTimestamp().isBefore(timestamp);
+        List<ChatMessage> cached = historyRing.newestBefore(Long.MAX_VALUE, before, limit);
+        if (cached != null) {
+            return toDtos(cached);
+        }
+        List<ChatMessage> pending = messageWriteBehind.getPendingMessages();
+        List<ChatMessage> stored = messageStore.findActiveBeforeTimestamp(timestamp, storeLimit(pending, limit));
+        return toDtos(mergePending(stored, pending, before, NEWEST_FIRST, limit));
+    }
+
+    /**
+     * 某个用户序号小于beforeId的消息DTO（包含已撤回的，按序号倒序），最多limit条
+     */
+    public List<ChatMessageDto> getMessageDtosByUser(String userIp, long beforeId, int limit) {
+        return toDtos(getMessagesByUser(userIp, beforeId, limit));
     }
 
-    public List<ChatMessage> getMessagesBefore(LocalDateTime timestamp, int limit) {
-        Pageable pageable = PageRequest.of(0, limit);
-        return chatMessageRepository.findMessagesBefore(timestamp, pageable);
+    /**
+     * 按页遍历某个用户的全部消息（按序号倒序），每页转换为DTO后交给consumer，内存中最多只有一页
+     */
+    public void forEachMessageDtoByUser(String userIp, int pageSize, Consumer<List<ChatMessageDto>> consumer) {
+        long beforeId = Long.MAX_VALUE;
+        while (true) {
+            List<ChatMessage> page = getMessagesByUser(userIp, beforeId, pageSize);
+            if (page.isEmpty()) {
+                return;
+            }
+            consumer.accept(toDtos(page));
+            if (page.size() < pageSize) {
+                return;
+            }
+            beforeId = page.get(page.size() - 1).getId();
+        }
     }
 
-    public List<ChatMessage> getMessagesByUser(String userIp) {
-        return chatMessageRepository.findByUserIpOrderByTimestampDesc(userIp);
+    private List<ChatMessage> getMessagesByUser(String userIp, long beforeId, int limit) {
+        List<ChatMessage> pending = messageWriteBehind.getPendingMessages();
+        List<ChatMessage> stored = messageStore.findByUserBefore(userIp, beforeId, limit);
+
+        // 该查询包含已撤回的消息，不能按撤回状态过滤
+        Map<Long, ChatMessage> merged = new LinkedHashMap<>();
+        stored.forEach(message -> merged.put(message.getId(), message));
+        pending.stream()
+                .filter(message -> userIp.equals(message.getUserIp()) && message.getId() < beforeId)
+                .forEach(message -> merged.put(message.getId(), message));
+        return merged.values().stream().sorted(NEWEST_FIRST).limit(limit).collect(Collectors.toList());
     }
 
     public ChatMessage recallMessage(Long messageId, String userIp) {
-        ChatMessage message = chatMessageRepository.findActiveMessageByIdAndUserIp(messageId, userIp);
-        if (message != null) {
-            message.recall();
-            return chatMessageRepository.save(message);
+        synchronized (recallLocks[(int) (messageId & 0x7fffffff) % recallLocks.length]) {
+            ChatMessage message = historyRing.get(messageId);
+            if (message == null) {
+                message = messageWriteBehind.getPending(messageId);
+            }
+            if (message == null) {
+                message = messageStore.findById(messageId);
+            }
+            // 只能撤回自己发送且尚未撤回的消息
+            if (message == null || !userIp.equals(message.getUserIp()) || Boolean.TRUE.equals(message.getRecalled())) {
+                return null;
+            }
+
+            // 写线程可能正在写入原对象，撤回时提交一个副本，按更新（merge）入库
+            // 副本在释放锁前已进入缓冲区或待写入队列，并发的撤回会看到已撤回状态，计数器只更新一次
+            ChatMessage recalled = new ChatMessage();
+            BeanUtils.copyProperties(message, recalled);
+            recalled.markNotNew();
+            recalled.recall();
+            messageWriteBehind.submit(recalled);
+            historyRing.replace(recalled);
+            chatCounters.onMessageRecalled(recalled.getUserIp());
+            searchIndex.remove(recalled.getId());
+            return recalled;
         }
-        return null;
     }
 
-    public List<ChatMessage> getAllActiveMessages() {
-        return chatMessageRepository.findAllActiveMessagesOrderByTimestamp();
+    /**
+     * 按序号升序导出序号大于sinceId的全部未撤回消息，每凑满batchSize条转换为DTO后交给consumer
+     * 先遍历已入库的消息，最后补上尚未入库、序号更大的消息；内存中最多只有一批。
+     * 撤回可能还在待写入队列中，入库的消息先与内存缓冲区和待写入队列中的版本核对，已撤回的不导出
+     */
+    public void exportActiveMessages(long sinceId, int batchSize, Consumer<List<ChatMessageDto>> consumer) {
+        List<ChatMessage> batch = new ArrayList<>(batchSize);
+        long[] lastId = {sinceId};
+        messageStore.forEachActiveAfter(sinceId, message -> {
+            lastId[0] = message.getId();
+            if (isRecalledInMemory(message.getId())) {
+                return;
+            }
+            batch.add(message);
+            if (batch.size() >= batchSize) {
+                consumer.accept(toDtos(batch));
+                batch.clear();
+            }
+        });
+
+        for (ChatMessage message : messageWriteBehind.getPendingMessages()) {
+            if (message.getId() > lastId[0] && !Boolean.TRUE.equals(message.getRecalled())) {
+                batch.add(message);
+            }
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(toDtos(batch));
+        }
+    }
+
+    /**
+     * 内存中的版本（比数据库新）是否已撤回
+     */
+    private boolean isRecalledInMemory(Long messageId) {
+        // 撤回不可逆，任一处已撤回即为已撤回
+        ChatMessage pending = messageWriteBehind.getPending(messageId);
+        if (pending != null && Boolean.TRUE.equals(pending.getRecalled())) {
+            return true;
+        }
+        ChatMessage cached = historyRing.get(messageId);
+        return cached != null && Boolean.TRUE.equals(cached.getRecalled());
     }
 
+    /**
+     * 未撤回消息总数，由计数器维护，不查询数据库
+     */
     public long getTotalMessageCount() {
-        return chatMessageRepository.countByRecalledFalse();
+        return chatCounters.getActiveMessages();
     }
 
     public ChatMessage getMessageById(Long messageId) {
-        return chatMessageRepository.findById(messageId).orElse(null);
+        ChatMessage cached = historyRing.get(messageId);
+        if (cached != null) {
+            return cached;
+        }
+        ChatMessage pending = messageWriteBehind.getPending(messageId);
+        if (pending != null) {
+            return pending;
+        }
+        return messageStore.findById(messageId);
+    }
+
+    /**
+     * 全文检索：按序号倒序返回序号小于beforeId、内容或用户名包含全部查询词的未撤回消息
+     * 候选ID来自倒排索引，消息按批从内存缓冲区、待写入队列和MessageStore读取后再校验原文
+     */
+    public List<ChatMessageDto> searchMessageDtos(List<String> terms, long beforeId, int limit) {
+        List<SearchTextUtil.QueryToken> tokens = new ArrayList<>();
+        for (String term : terms) {
+            tokens.addAll(SearchTextUtil.queryTokens(term));
+        }
+
+        List<ChatMessage> result = new ArrayList<>(limit);
+        long cursor = beforeId;
+        int batchSize = limit * 2;
+        while (result.size() < limit) {
+            List<Long> candidates = searchIndex.candidates(tokens, cursor, batchSize);
+            if (candidates.isEmpty()) {
+                break;
+            }
+            Map<Long, ChatMessage> messages = getMessagesByIds(candidates);
+            for (Long candidate : candidates) {
+                ChatMessage message = messages.get(candidate);
+                if (message != null && !Boolean.TRUE.equals(message.getRecalled()) && matches(message, terms)) {
+                    result.add(message);
+                    if (result.size() >= limit) {
+                        break;
+                    }
+                }
+            }
+            if (candidates.size() < batchSize) {
+                break;
+            }
+            cursor = candidates.get(candidates.size() - 1);
+        }
+        return toDtos(result);
+    }
+
+    /**
+     * 按ID批量获取消息，内存中没有的用一次查询从MessageStore读取
+     */
+    private Map<Long, ChatMessage> getMessagesByIds(List<Long> messageIds) {
+        Map<Long, ChatMessage> messages = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long messageId : messageIds) {
+            ChatMessage message = historyRing.get(messageId);
+            if (message == null) {
+                message = messageWriteBehind.getPending(messageId);
+            }
+            if (message != null) {
+                messages.put(messageId, message);
+            } else {
+                missing.add(messageId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (ChatMessage message : messageStore.findByIds(missing)) {
+                messages.put(message.getId(), message);
+            }
+        }
+        return messages;
+    }
+
+    private boolean matches(ChatMessage message, List<String> terms) {
+        for (String term : terms) {
+            if (!SearchTextUtil.containsTerm(message.getContent(), term)
+                    && !SearchTextUtil.containsTerm(message.getUserName(), term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 消息转为DTO，文件信息从文件缓存批量获取，未命中的用一次查询加载
+     */
+    private List<ChatMessageDto> toDtos(List<ChatMessage> messages) {
+        Set<Long> fileIds = new HashSet<>();
+        for (ChatMessage message : messages) {
+            if (message.getFileId() != null) {
+                fileIds.add(message.getFileId());
+            }
+        }
+        Map<Long, ChatFile> files = fileIds.isEmpty()
+                ? Collections.<Long, ChatFile>emptyMap()
+                : fileService.getFilesByIds(fileIds);
+
+        List<ChatMessageDto> dtos = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            ChatFile file = message.getFileId() != null ? files.get(message.getFileId()) : null;
+            dtos.add(ChatMessageDto.fromEntity(message, file));
+        }
+        return dtos;
+    }
+
+    /**
+     * 查询数据库时多取待写入队列中撤回的条数：这些消息会在合并时从结果中移除，
+     * 多取之后合并结果仍能凑满limit条，调用方按页不满判断没有更多消息时不会提前结束
+     */
+    private static int storeLimit(List<ChatMessage> pending, int limit) {
+        int recalled = 0;
+        for (ChatMessage message : pending) {
+            if (Boolean.TRUE.equals(message.getRecalled())) {
+                recalled++;
+            }
+        }
+        return limit + recalled;
+    }
+
+    /**
+     * 把尚未入库的消息合并进查询结果
+     * 待写入的版本比数据库中的新，撤回后的消息会从结果中移除，数据库应按storeLimit多取；
+     * 调用方需先取待写入快照再查询数据库，这样刚写完的消息至少会出现在其中一边
+     */
+    private List<ChatMessage> mergePending(List<ChatMessage> stored, List<ChatMessage> pending,
+                                           Predicate<ChatMessage> filter, Comparator<ChatMessage> order,
+                                           int limit) {
+        if (pending.isEmpty()) {
+            return stored;
+        }
+        Map<Long, ChatMessage> merged = new LinkedHashMap<>();
+        stored.forEach(message -> merged.put(message.getId(), message));
+        for (ChatMessage message : pending) {
+            if (Boolean.TRUE.equals(message.getRecalled())) {
+                merged.remove(message.getId());
+            } else if (filter.test(message)) {
+                merged.put(message.getId(), message);
+            }
+        }
+        return merged.values().stream()
+                .sorted(order)
+                .limit(limit)
+                .collect(Collectors.toList());
     }
-}
\ No newline at end of file
+}
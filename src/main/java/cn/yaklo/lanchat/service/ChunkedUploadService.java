@@ -0,0 +1,419 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatFile;
+import cn.yaklo.lanchat.util.HashUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分片断点续传
+ * 初始化时按文件大小创建临时文件，各分片用FileChannel按位置直接写入，可以并行、乱序上传；
+ * 已收到的分片记录在位图中并持久化，连接中断或服务重启后客户端查询缺失的分片继续上传。
+ * 全部分片到齐后计算摘要、按摘要存入上传目录（内容已存在则丢弃），这时才创建ChatFile记录
+ */
+@Service
+public class ChunkedUploadService {
+
+    private static final String META_SUFFIX = ".meta";
+    private static final String DATA_SUFFIX = ".part";
+    private static final String CHUNKS_SUFFIX = ".chunks";
+
+    @Autowired
+    private FileService fileService;
+
+    @Value("${lanchat.upload.chunked.dir:./data/uploading}")
+    private String uploadingDir;
+
+    @Value("${lanchat.upload.chunked.chunk-size:4194304}")
+    private int chunkSize;
+
+    @Value("${lanchat.upload.chunked.max-file-size:104857600}")
+    private long maxFileSize;
+
+    @Value("${lanchat.upload.chunked.session-ttl:86400000}")
+    private long sessionTtl;
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService cleaner;
+
+    @PostConstruct
+    public void init() throws IOException {
+        Path dir = Paths.get(uploadingDir);
+        Files.createDirectories(dir);
+
+        // 恢复重启前未完成的上传
+        try (DirectoryStream<Path> metas = Files.newDirectoryStream(dir, "*" + META_SUFFIX)) {
+            for (Path meta : metas) {
+                try {
+                    UploadSession session = loadSession(meta);
+                    if (session == null) {
+                        // 临时文件已不存在，无法继续上传，删除遗留的会话信息
+                        System.out.println("删除缺少临时文件的分片上传: " + meta);
+                        continue;
+                    }
+                    sessions.put(session.uploadId, session);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("恢复分片上传失败: " + meta + " " + e.getMessage());
+                }
+            }
+        }
+        if (!sessions.isEmpty()) {
+            System.out.println("恢复了 " + sessions.size() + " 个未完成的分片上传");
+        }
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("upload-cleaner-");
+        threadFactory.setDaemon(true);
+        cleaner = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        long period = Math.max(60000, sessionTtl / 24);
+        cleaner.scheduleWithFixedDelay(this::removeExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (cleaner != null) {
+            cleaner.shutdownNow();
+        }
+        for (UploadSession session : sessions.values()) {
+            synchronized (session) {
+                closeChannel(session);
+            }
+        }
+    }
+
+    /**
+     * 创建上传会话，预先分配目标大小的临时文件
+     * @param sha256 客户端计算的内容摘要，可为空；不为空时完成上传时校验
+     */
+    public UploadSession init(String fileName, long fileSize, String contentType, String sha256, String userIp)
+            throws IOException {
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalArgumentException("文件名不能为空");
+        }
+        if (fileSize < 0 || fileSize > maxFileSize) {
+            throw new IllegalArgumentException("文件大小不能超过" + (maxFileSize / 1024 / 1024) + "MB");
+        }
+        if (sha256 != null && !sha256.matches("[0-9a-fA-F]{64}")) {
+            throw new IllegalArgumentException("无效的SHA-256");
+        }
+
+        UploadSession session = new UploadSession();
+        session.uploadId = UUID.randomUUID().toString().replace("-", "");
+        session.fileName = fileName;
+        session.fileSize = fileSize;
+        session.contentType = contentType;
+        session.sha256 = sha256 != null ? sha256.toLowerCase() : null;
+        session.userIp = userIp;
+        session.chunkSize = chunkSize;
+        session.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        session.received = new BitSet(session.chunkCount);
+        session.lastActive = System.currentTimeMillis();
+
+        try (RandomAccessFile file = new RandomAccessFile(path(session, DATA_SUFFIX).toFile(), "rw")) {
+            file.setLength(fileSize);
+        }
+        Properties meta = new Properties();
+        meta.setProperty("fileName", session.fileName);
+        meta.setProperty("fileSize", String.valueOf(session.fileSize));
+        meta.setProperty("chunkSize", String.valueOf(session.chunkSize));
+        meta.setProperty("userIp", session.userIp);
+        if (session.contentType != null) {
+            meta.setProperty("contentType", session.contentType);
+        }
+        if (session.sha256 != null) {
+            meta.setProperty("sha256", session.sha256);
+        }
+        try (OutputStream out = Files.newOutputStream(path(session, META_SUFFIX))) {
+            meta.store(out, null);
+        }
+
+        sessions.put(session.uploadId, session);
+        return session;
+    }
+
+    /**
+     * 当前用户的上传会话，不存在或不属于该用户时返回null
+     */
+    public UploadSession getSession(String uploadId, String userIp) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null || !session.userIp.equals(userIp)) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * 把一个分片写到临时文件的对应位置，多个分片可以同时写入
+     */
+    public void writeChunk(UploadSession session, int index, InputStream body) throws IOException {
+        if (index < 0 || index >= session.chunkCount) {
+            throw new IllegalArgumentException("分片序号超出范围");
+        }
+        long position = (long) index * session.chunkSize;
+        long length = Math.min(session.chunkSize, session.fileSize - position);
+
+        FileChannel channel;
+        synchronized (session) {
+            if (session.completed) {
+                throw new IllegalStateException("上传已完成");
+            }
+            if (session.channel == null) {
+                session.channel = FileChannel.open(path(session, DATA_SUFFIX), StandardOpenOption.WRITE);
+            }
+            channel = session.channel;
+            session.writers++;
+            session.lastActive = System.currentTimeMillis();
+        }
+
+        boolean success = false;
+        try {
+            ReadableByteChannel source = Channels.newChannel(body);
+            long written = 0;
+            while (written < length) {
+                long count = channel.transferFrom(source, position + written, length - written);
+                if (count <= 0) {
+                    break;
+                }
+                written += count;
+            }
+            if (written != length || body.read() >= 0) {
+                throw new IllegalArgumentException("分片大小应为" + length + "字节");
+            }
+            success = true;
+        } finally {
+            synchronized (session) {
+                session.writers--;
+                // 写入失败时该位置的内容已不可信，即使之前收到过也要重新上传
+                if (success) {
+                    session.received.set(index);
+                } else {
+                    session.received.clear(index);
+                }
+                Files.write(path(session, CHUNKS_SUFFIX), session.received.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * 尚未收到的分片序号
+     */
+    public List<Integer> getMissingChunks(UploadSession session) {
+        synchronized (session) {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = session.received.nextClearBit(0); i < session.chunkCount;
+                 i = session.received.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+            return missing;
+        }
+    }
+
+    /**
+     * 所有分片到齐后校验摘要，把临时文件存入上传目录并创建文件记录
+     */
+    public ChatFile complete(UploadSession session) throws IOException {
+        synchronized (session) {
+            if (session.completed) {
+                throw new IllegalStateException("上传已完成");
+            }
+            if (session.writers > 0 || session.received.cardinality() < session.chunkCount) {
+                throw new IllegalStateException("还有分片未上传完成");
+            }
+            session.completed = true;
+            try {
+                if (session.channel != null) {
+                    session.channel.force(false);
+                }
+            } finally {
+                closeChannel(session);
+            }
+        }
+
+        Path data = path(session, DATA_SUFFIX);
+        ChatFile savedFile;
+        try {
+            String contentHash = HashUtil.sha256Hex(data);
+            if (session.sha256 != null && !session.sha256.equals(contentHash)) {
+                // 内容与客户端不一致，丢弃全部分片让客户端重新上传
+                synchronized (session) {
+                    session.received.clear();
+                    Files.deleteIfExists(path(session, CHUNKS_SUFFIX));
+                    session.completed = false;
+                }
+                throw new IllegalStateException("文件校验失败，请重新上传");
+            }
+
+            savedFile = fileService.saveUploadedFile(data, contentHash, session.fileName, session.fileSize,
+                    session.contentType, session.userIp);
+        } catch (IOException | RuntimeException e) {
+            if (Files.exists(data)) {
+                // 临时文件还在，恢复为未完成状态，客户端可以重试完成或由过期清理回收
+                synchronized (session) {
+                    session.completed = false;
+                    session.lastActive = System.currentTimeMillis();
+                }
+            } else {
+                // 临时文件已被移走，无法重试，清理会话
+                try {
+                    abort(session);
+                } catch (IOException abortError) {
+                    System.err.println("清理分片上传失败: " + abortError.getMessage());
+                }
+            }
+            throw e;
+        }
+
+        sessions.remove(session.uploadId);
+        Files.deleteIfExists(path(session, CHUNKS_SUFFIX));
+        Files.deleteIfExists(path(session, META_SUFFIX));
+        return savedFile;
+    }
+
+    public void abort(UploadSession session) throws IOException {
+        synchronized (session) {
+            session.completed = true;
+            closeChannel(session);
+        }
+        sessions.remove(session.uploadId);
+        deleteFiles(session);
+    }
+
+    public int getActiveSessionCount() {
+        return sessions.size();
+    }
+
+    private void removeExpired() {
+        long expireBefore = System.currentTimeMillis() - sessionTtl;
+        for (UploadSession session : sessions.values()) {
+            synchronized (session) {
+                if (session.lastActive >= expireBefore || session.writers > 0 || session.completed) {
+                    continue;
+                }
+            }
+            try {
+                abort(session);
+                System.out.println("已清理过期的分片上传: " + session.fileName);
+            } catch (IOException e) {
+                System.err.println("清理分片上传失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 从会话信息文件恢复上传会话，临时文件已不存在时删除会话的全部文件并返回null
+     */
+    private UploadSession loadSession(Path meta) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(meta)) {
+            properties.load(in);
+        }
+        String name = meta.getFileName().toString();
+
+        UploadSession session = new UploadSession();
+        session.uploadId = name.substring(0, name.length() - META_SUFFIX.length());
+        session.fileName = properties.getProperty("fileName");
+        session.fileSize = Long.parseLong(properties.getProperty("fileSize"));
+        session.chunkSize = Integer.parseInt(properties.getProperty("chunkSize"));
+        session.userIp = properties.getProperty("userIp");
+        session.contentType = properties.getProperty("contentType");
+        session.sha256 = properties.getProperty("sha256");
+        session.chunkCount = (int) ((session.fileSize + session.chunkSize - 1) / session.chunkSize);
+        Path chunks = path(session, CHUNKS_SUFFIX);
+        session.received = Files.exists(chunks) ? BitSet.valueOf(Files.readAllBytes(chunks)) : new BitSet();
+        session.lastActive = System.currentTimeMillis();
+        if (!Files.exists(path(session, DATA_SUFFIX))) {
+            deleteFiles(session);
+            return null;
+        }
+        return session;
+    }
+
+    private void deleteFiles(UploadSession session) throws IOException {
+        Files.deleteIfExists(path(session, DATA_SUFFIX));
+        Files.deleteIfExists(path(session, CHUNKS_SUFFIX));
+        Files.deleteIfExists(path(session, META_SUFFIX));
+    }
+
+    private void closeChannel(UploadSession session) {
+        if (session.channel != null) {
+            try {
+                session.channel.close();
+            } catch (IOException e) {
+                System.err.println("关闭分片上传文件失败: " + e.getMessage());
+            }
+            session.channel = null;
+        }
+    }
+
+    private Path path(UploadSession session, String suffix) {
+        return Paths.get(uploadingDir, session.uploadId + suffix);
+    }
+
+    /**
+     * 一次分片上传的状态，可变字段由会话对象自身的锁保护
+     */
+    public static class UploadSession {
+        private String uploadId;
+        private String fileName;
+        private long fileSize;
+        private String contentType;
+        private String sha256;
+        private String userIp;
+        private int chunkSize;
+        private int chunkCount;
+
+        private BitSet received;
+        private FileChannel channel;
+        // 正在写入的分片数，完成上传前必须为0
+        private int writers;
+        private boolean completed;
+        private long lastActive;
+
+        public String getUploadId() {
+            return uploadId;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+    }
+}
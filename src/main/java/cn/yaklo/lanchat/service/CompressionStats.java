@@ -0,0 +1,60 @@
+package cn.yaklo.lanchat.service;
+
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压缩效果统计，按通道（ws、http）分别记录原始字节数与压缩后字节数
+ */
+@Service
+public class CompressionStats {
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    public void recordCompressed(String channel, long rawBytes, long compressedBytes) {
+        Channel stats = channel(channel);
+        stats.compressed.increment();
+        stats.rawBytes.add(rawBytes);
+        stats.compressedBytes.add(compressedBytes);
+    }
+
+    public void recordSkipped(String channel, long rawBytes) {
+        Channel stats = channel(channel);
+        stats.skipped.increment();
+        stats.rawBytes.add(rawBytes);
+        stats.compressedBytes.add(rawBytes);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+            Channel stats = entry.getValue();
+            long raw = stats.rawBytes.sum();
+            long compressed = stats.compressedBytes.sum();
+
+            Map<String, Object> channelStats = new LinkedHashMap<>();
+            channelStats.put("compressed", stats.compressed.sum());
+            channelStats.put("skipped", stats.skipped.sum());
+            channelStats.put("rawBytes", raw);
+            channelStats.put("compressedBytes", compressed);
+            channelStats.put("ratio", raw > 0 ? (double) compressed / raw : 1.0);
+            result.put(entry.getKey(), channelStats);
+        }
+        return result;
+    }
+
+    private Channel channel(String name) {
+        return channels.computeIfAbsent(name, key -> new Channel());
+    }
+
+    private static class Channel {
+        private final LongAdder compressed = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder rawBytes = new LongAdder();
+        private final LongAdder compressedBytes = new LongAdder();
+    }
+}
@@ -0,0 +1,110 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatFile;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ChatFile元数据缓存，按ID和存储文件名查找
+ * LRU淘汰，同时限制条目数和估算的内存占用
+ */
+@Component
+public class FileMetadataCache {
+
+    // 每个条目除字符串外的估算开销（对象头、字段、两个映射中的节点）
+    private static final int ENTRY_OVERHEAD = 256;
+
+    @Value("${lanchat.cache.file.max-entries:10000}")
+    private int maxEntries;
+
+    @Value("${lanchat.cache.file.max-bytes:4194304}")
+    private long maxBytes;
+
+    // 按访问顺序排列，最久未使用的在前，由this锁保护
+    private final LinkedHashMap<Long, ChatFile> byId = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, Long> idByStoredName = new HashMap<>();
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public synchronized ChatFile get(Long fileId) {
+        ChatFile file = byId.get(fileId);
+        recordLookup(file);
+        return file;
+    }
+
+    public synchronized ChatFile getByStoredName(String storedName) {
+        Long fileId = idByStoredName.get(storedName);
+        ChatFile file = fileId != null ? byId.get(fileId) : null;
+        recordLookup(file);
+        return file;
+    }
+
+    public synchronized void put(ChatFile file) {
+        if (file == null || file.getId() == null) {
+            return;
+        }
+        remove(file.getId());
+        byId.put(file.getId(), file);
+        idByStoredName.put(file.getStoredName(), file.getId());
+        bytes += weigh(file);
+
+        Iterator<ChatFile> eldest = byId.values().iterator();
+        while ((byId.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            ChatFile evicted = eldest.next();
+            eldest.remove();
+            idByStoredName.remove(evicted.getStoredName(), evicted.getId());
+            bytes -= weigh(evicted);
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidate(Long fileId) {
+        remove(fileId);
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", byId.size());
+        stats.put("bytes", bytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        long lookups = hits + misses;
+        stats.put("hitRatio", lookups > 0 ? (double) hits / lookups : 0.0);
+        return stats;
+    }
+
+    private void recordLookup(ChatFile file) {
+        if (file != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    private void remove(Long fileId) {
+        ChatFile existing = byId.remove(fileId);
+        if (existing != null) {
+            // 相同内容的多条记录共用存储文件名，只移除指向本条记录的映射
+            idByStoredName.remove(existing.getStoredName(), fileId);
+            bytes -= weigh(existing);
+        }
+    }
+
+    private long weigh(ChatFile file) {
+        return ENTRY_OVERHEAD + 2L * (length(file.getOriginalName()) + length(file.getStoredName())
+                + length(file.getFilePath()) + length(file.getContentType()) + length(file.getUploadedBy()));
+    }
+
+    private int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+}
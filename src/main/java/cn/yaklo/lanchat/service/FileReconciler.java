@@ -0,0 +1,212 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatFile;
+import cn.yaklo.lanchat.repository.ChatFileRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 上传目录与文件记录的一致性检查
+ * 定期在低优先级线程中分批检查：没有记录引用的物理文件（孤儿文件）、遗留的上传临时文件、物理文件已丢失的记录。
+ * 默认只报告；开启repair后孤儿文件移到隔离目录、临时文件删除、丢失文件的记录删除。
+ * 每批之间暂停，单个文件只在检查和处理的瞬间加锁，不阻塞上传
+ */
+@Component
+public class FileReconciler {
+
+    // 每类问题在日志中逐条输出的上限，其余只计数
+    private static final int MAX_LOGGED = 100;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private ChatFileRepository chatFileRepository;
+
+    @Value("${lanchat.files.reconcile.enabled:true}")
+    private boolean enabled;
+
+    @Value("${lanchat.files.reconcile.interval:21600000}")
+    private long interval;
+
+    @Value("${lanchat.files.reconcile.initial-delay:600000}")
+    private long initialDelay;
+
+    @Value("${lanchat.files.reconcile.batch-size:200}")
+    private int batchSize;
+
+    @Value("${lanchat.files.reconcile.batch-pause:100}")
+    private long batchPause;
+
+    // 修改时间在该时长（毫秒）以内的文件视为可能正在上传，不作处理
+    @Value("${lanchat.files.reconcile.orphan-grace:3600000}")
+    private long orphanGrace;
+
+    @Value("${lanchat.files.reconcile.repair:false}")
+    private boolean repair;
+
+    @Value("${lanchat.files.reconcile.quarantine-dir:./data/orphans}")
+    private String quarantineDir;
+
+    // 单次检查最多删除的丢失文件记录数，防止上传目录整体不可用时误删全部记录
+    @Value("${lanchat.files.reconcile.max-record-repairs:100}")
+    private int maxRecordRepairs;
+
+    private ScheduledExecutorService scheduler;
+    private volatile boolean running = true;
+
+    // 最近一次检查的结果，由检查线程写入
+    private volatile Map<String, Object> lastResult = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("file-reconciler-");
+        threadFactory.setDaemon(true);
+        threadFactory.setThreadPriority(Thread.MIN_PRIORITY);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        scheduler.scheduleWithFixedDelay(this::reconcile, initialDelay, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>(lastResult);
+        stats.put("enabled", enabled);
+        stats.put("repair", repair);
+        return stats;
+    }
+
+    private void reconcile() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("startedAt", LocalDateTime.now().toString());
+        try {
+            checkFiles(result);
+            checkRecords(result);
+            result.put("finishedAt", LocalDateTime.now().toString());
+            lastResult = result;
+            System.out.println("文件一致性检查完成: " + result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("文件一致性检查失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 遍历上传目录，找出没有记录引用的文件和遗留的临时文件
+     */
+    private void checkFiles(Map<String, Object> result) throws IOException, InterruptedException {
+        long graceBefore = System.currentTimeMillis() - orphanGrace;
+        long scanned = 0;
+        long orphans = 0;
+        long staleTemps = 0;
+        long repaired = 0;
+
+        try (Stream<Path> paths = Files.walk(fileService.getUploadPath())) {
+            Iterator<Path> iterator = paths.filter(Files::isRegularFile).iterator();
+            while (iterator.hasNext() && running) {
+                Path path = iterator.next();
+                if (++scanned % batchSize == 0) {
+                    Thread.sleep(batchPause);
+                }
+                try {
+                    if (Files.getLastModifiedTime(path).toMillis() > graceBefore) {
+                        continue;
+                    }
+
+                    if (path.getFileName().toString().startsWith(".")) {
+                        // 上传中途失败遗留的临时文件
+                        staleTemps++;
+                        log(staleTemps, "遗留的临时文件: " + path);
+                        if (repair && Files.deleteIfExists(path)) {
+                            repaired++;
+                        }
+                    } else if (!chatFileRepository.existsByFilePath(path.toString())) {
+                        orphans++;
+                        log(orphans, "没有记录引用的文件: " + path);
+                        if (repair && fileService.quarantineOrphanBlob(path, Paths.get(quarantineDir))) {
+                            repaired++;
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // 检查期间文件被删除或移动
+                }
+            }
+        }
+
+        result.put("scannedFiles", scanned);
+        result.put("orphanFiles", orphans);
+        result.put("staleTempFiles", staleTemps);
+        result.put("repairedFiles", repaired);
+    }
+
+    /**
+     * 按ID分批遍历文件记录，找出物理文件已丢失的记录
+     */
+    private void checkRecords(Map<String, Object> result) throws InterruptedException {
+        long scanned = 0;
+        long missing = 0;
+        long repaired = 0;
+
+        long lastId = 0;
+        while (running) {
+            List<ChatFile> page = chatFileRepository.findByIdGreaterThanOrderByIdAsc(lastId,
+                    PageRequest.of(0, batchSize));
+            for (ChatFile chatFile : page) {
+                lastId = chatFile.getId();
+                scanned++;
+                if (Files.exists(Paths.get(chatFile.getFilePath()))) {
+                    continue;
+                }
+                missing++;
+                log(missing, "文件记录 " + chatFile.getId() + " 的物理文件不存在: " + chatFile.getFilePath());
+                if (repair && repaired < maxRecordRepairs && fileService.deleteDanglingRecord(chatFile)) {
+                    repaired++;
+                }
+            }
+            if (page.size() < batchSize) {
+                break;
+            }
+            Thread.sleep(batchPause);
+        }
+
+        result.put("scannedRecords", scanned);
+        result.put("missingFiles", missing);
+        result.put("repairedRecords", repaired);
+    }
+
+    private void log(long count, String message) {
+        if (count <= MAX_LOGGED) {
+            System.out.println(message);
+        }
+    }
+}
@@ -2,88 +2,517 @@ package cn.yaklo.lanchat.service;
 
 import cn.yaklo.lanchat.entity.ChatFile;
 import cn.yaklo.lanchat.repository.ChatFileRepository;
+import cn.yaklo.lanchat.util.HashUtil;
+import cn.yaklo.lanchat.util.SequenceUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 @Service
 public class FileService {
 
     private final String UPLOAD_DIR = "./data/upfile";
 
+    // 上传中的临时文件名前缀，与按内容摘要命名的文件区分
+    private static final String TEMP_PREFIX = ".upload-";
+
+    // 压缩保存的文件名后缀
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private static final int MIGRATION_PAGE_SIZE = 500;
+
+    // 按内容摘要分段加锁，保证同一内容的保存、秒传和删除互斥
+    private final Object[] blobLocks = new Object[64];
+
+    private final AtomicLong deduplicatedUploads = new AtomicLong();
+    private final AtomicLong instantUploads = new AtomicLong();
+    private final AtomicLong compressedUploads = new AtomicLong();
+    private final AtomicLong compressionSavedBytes = new AtomicLong();
+
+    @Value("${lanchat.upload.compression.enabled:true}")
+    private boolean compressionEnabled;
+
+    @Value("${lanchat.upload.compression.min-size:4096}")
+    private long compressionMinSize;
+
+    @Value("${lanchat.upload.compression.level:6}")
+    private int compressionLevel;
+
+    // 压缩后大小超过原大小的该比例时按原样保存
+    @Value("${lanchat.upload.compression.max-ratio:0.9}")
+    private double compressionMaxRatio;
+
+    @Value("${lanchat.upload.compression.types:text/*,application/json,application/xml,application/javascript,application/x-sh,application/sql,application/x-tar,image/svg+xml}")
+    private String[] compressibleTypes;
+
+    @Value("${lanchat.upload.compression.extensions:txt,log,csv,tsv,md,json,xml,yaml,yml,sql,sh,java,js,ts,py,c,cpp,h,go,html,css,svg,tar,ini,conf,properties}")
+    private String[] compressibleExtensions;
+
+    {
+        for (int i = 0; i < blobLocks.length; i++) {
+            blobLocks[i] = new Object();
+        }
+    }
+
     @Autowired
     private ChatFileRepository chatFileRepository;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+
+    @Autowired
+    private ChatCounters chatCounters;
+
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    /**
+     * 文件ID改为序列分配后，把序列推到已有文件ID之后（池化分配时序列值是一组ID的上界）
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        Long maxId = chatFileRepository.findMaxId();
+        if (maxId != null) {
+            SequenceUtil.ensureSequence(jdbcTemplate, "chat_file_seq",
+                    maxId + ChatFile.ID_ALLOCATION_SIZE, ChatFile.ID_ALLOCATION_SIZE);
+        }
+        migrateLayout();
+
+        // 旧记录的内容摘要在后台补算，不在下载请求中读取整个文件
+        Thread backfill = new Thread(this::backfillContentHashes, "file-hash-backfill");
+        backfill.setDaemon(true);
+        backfill.setPriority(Thread.MIN_PRIORITY);
+        backfill.start();
+    }
+
+    /**
+     * 把旧版本平铺在上传目录中的文件移到两级目录中，并更新引用它的文件记录
+     * 先移动文件再更新记录：中途退出时文件已在新位置，下次启动时只更新记录
+     */
+    private void migrateLayout() throws IOException {
+        long lastId = 0;
+        int migrated = 0;
+        while (true) {
+            List<ChatFile> page = chatFileRepository.findByIdGreaterThanOrderByIdAsc(lastId,
+                    PageRequest.of(0, MIGRATION_PAGE_SIZE));
+            for (ChatFile chatFile : page) {
+                lastId = chatFile.getId();
+                Path current = Paths.get(chatFile.getFilePath());
+                Path target = getBlobPath(chatFile.getStoredName());
+                if (current.equals(target)) {
+                    continue;
+                }
+                if (Files.exists(current)) {
+                    Files.createDirectories(target.getParent());
+                    Files.move(current, target, StandardCopyOption.ATOMIC_MOVE);
+                } else if (!Files.exists(target)) {
+                    // 文件已丢失，留给FileReconciler报告
+                    continue;
+                }
+                // 相同内容的多条记录共用一个文件，一次更新全部
+                migrated += chatFileRepository.updateFilePath(current.toString(), target.toString());
+            }
+            if (page.size() < MIGRATION_PAGE_SIZE) {
+                break;
+            }
+        }
+        if (migrated > 0) {
+            System.out.println("已将 " + migrated + " 条文件记录迁移到分级目录");
+        }
+    }
+
+    /**
+     * 为没有内容摘要的旧文件记录计算SHA-256
+     * 只更新摘要仍为空的记录，期间被删除的记录不会被重新写入；补算完成前下载使用弱ETag
+     */
+    private void backfillContentHashes() {
+        long lastId = 0;
+        int filled = 0;
+        try {
+            while (true) {
+                List<ChatFile> page = chatFileRepository.findByContentHashIsNullAndIdGreaterThanOrderByIdAsc(lastId,
+                        PageRequest.of(0, MIGRATION_PAGE_SIZE));
+                for (ChatFile chatFile : page) {
+                    lastId = chatFile.getId();
+                    Path path = Paths.get(chatFile.getFilePath());
+                    if (!Files.isRegularFile(path)) {
+                        continue;
+                    }
+                    if (chatFileRepository.updateContentHash(chatFile.getId(), HashUtil.sha256Hex(path)) > 0) {
+                        fileMetadataCache.invalidate(chatFile.getId());
+                        filled++;
+                    }
+                }
+                if (page.size() < MIGRATION_PAGE_SIZE) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("补算文件内容摘要失败: " + e.getMessage());
+        }
+        if (filled > 0) {
+            System.out.println("已为 " + filled + " 个旧文件补算内容摘要");
+        }
+    }
+
     public ChatFile uploadFile(MultipartFile file, String userIp) throws IOException {
         // 确保上传目录存在
+        Path uploadPath = getUploadPath();
+
+        // 先写到临时文件，同时计算内容摘要
+        Path tempPath = uploadPath.resolve(TEMP_PREFIX + UUID.randomUUID());
+        MessageDigest digest = HashUtil.sha256();
+        try (InputStream in = new DigestInputStream(file.getInputStream(), digest)) {
+            Files.copy(in, tempPath);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        return saveUploadedFile(tempPath, HashUtil.toHex(digest.digest()), file.getOriginalFilename(),
+                file.getSize(), file.getContentType(), userIp);
+    }
+
+    /**
+     * 上传目录，不存在时创建
+     */
+    public Path getUploadPath() throws IOException {
         Path uploadPath = Paths.get(UPLOAD_DIR);
         if (!Files.exists(uploadPath)) {
             Files.createDirectories(uploadPath);
         }
+        return uploadPath;
+    }
 
-        // 生成唯一文件名
-        String originalFilename = file.getOriginalFilename();
-        String extension = "";
-        if (originalFilename != null && originalFilename.contains(".")) {
-            extension = originalFilename.substring(originalFilename.lastIndexOf("."));
+    /**
+     * 物理文件的位置：按存储文件名的前四个字符分两级目录（ab/cd/abcd...），避免单个目录下文件过多
+     */
+    public Path getBlobPath(String storedName) throws IOException {
+        Path uploadPath = getUploadPath();
+        if (storedName.length() < 4) {
+            return uploadPath.resolve(storedName);
         }
-        String storedName = UUID.randomUUID().toString() + extension;
+        return uploadPath.resolve(storedName.substring(0, 2)).resolve(storedName.substring(2, 4)).resolve(storedName);
+    }
+
+    /**
+     * 已写入临时文件的上传内容按摘要存放：相同内容只保存一份，已存在时丢弃临时文件，然后保存文件信息
+     * 文本等可压缩的内容以gzip压缩保存（文件名加.gz后缀）。临时文件必须与上传目录在同一文件系统
+     */
+    public ChatFile saveUploadedFile(Path tempPath, String contentHash, String originalFilename, long fileSize,
+                                     String contentType, String userIp) throws IOException {
+        contentType = resolveContentType(contentType, originalFilename);
+        Path rawBlob = getBlobPath(contentHash);
+        Path gzipBlob = getBlobPath(contentHash + GZIP_SUFFIX);
 
-        // 保存文件
-        Path filePath = uploadPath.resolve(storedName);
-        Files.copy(file.getInputStream(), filePath);
+        // 压缩在加锁前进行，大文件压缩期间不阻塞其他上传
+        Path compressedTemp = null;
+        if (!Files.exists(rawBlob) && !Files.exists(gzipBlob)
+                && isCompressible(contentType, originalFilename, fileSize)) {
+            compressedTemp = compressForStorage(tempPath, fileSize);
+        }
 
-        // 保存文件信息到数据库
+        synchronized (blobLock(contentHash)) {
+            Path blobPath;
+            String storageEncoding = null;
+            if (Files.exists(rawBlob) || Files.exists(gzipBlob)) {
+                // 相同内容已存在，沿用已有文件的存储编码
+                Files.delete(tempPath);
+                if (compressedTemp != null) {
+                    Files.delete(compressedTemp);
+                }
+                if (Files.exists(rawBlob)) {
+                    blobPath = rawBlob;
+                } else {
+                    blobPath = gzipBlob;
+                    storageEncoding = ChatFile.ENCODING_GZIP;
+                }
+                deduplicatedUploads.incrementAndGet();
+            } else if (compressedTemp != null) {
+                Files.createDirectories(gzipBlob.getParent());
+                Files.move(compressedTemp, gzipBlob, StandardCopyOption.ATOMIC_MOVE);
+                Files.delete(tempPath);
+                blobPath = gzipBlob;
+                storageEncoding = ChatFile.ENCODING_GZIP;
+                compressedUploads.incrementAndGet();
+                compressionSavedBytes.addAndGet(fileSize - Files.size(gzipBlob));
+            } else {
+                Files.createDirectories(rawBlob.getParent());
+                Files.move(tempPath, rawBlob, StandardCopyOption.ATOMIC_MOVE);
+                blobPath = rawBlob;
+            }
+            int[] dimensions = storageEncoding == null ? thumbnailService.readDimensions(blobPath, contentType) : null;
+            ChatFile savedFile = saveFileRecord(originalFilename, blobPath.getFileName().toString(), blobPath,
+                    fileSize, contentType, userIp, contentHash, dimensions, storageEncoding);
+            // 缩略图在后台生成，不阻塞上传请求
+            thumbnailService.submit(savedFile);
+            return savedFile;
+        }
+    }
+
+    /**
+     * 秒传：服务器已有相同内容时直接新建一条引用该内容的文件记录，不需要传输文件
+     * @return 没有该内容时返回null
+     */
+    public ChatFile copyByContentHash(String contentHash, String originalFilename, String contentType,
+                                      String userIp) {
+        synchronized (blobLock(contentHash)) {
+            ChatFile existing = chatFileRepository.findFirstByContentHash(contentHash).orElse(null);
+            if (existing == null || !Files.exists(Paths.get(existing.getFilePath()))) {
+                return null;
+            }
+            instantUploads.incrementAndGet();
+            int[] dimensions = existing.getImageWidth() != null
+                    ? new int[]{existing.getImageWidth(), existing.getImageHeight()} : null;
+            return saveFileRecord(originalFilename, existing.getStoredName(), Paths.get(existing.getFilePath()),
+                    existing.getFileSize(), contentType != null ? contentType : resolveContentType(
+                            existing.getContentType(), originalFilename),
+                    userIp, contentHash, dimensions, existing.getStorageEncoding());
+        }
+    }
+
+    /**
+     * 文件类型：客户端没有提供时按原始文件名的扩展名推断。物理文件按摘要命名没有扩展名，只能在保存时确定
+     */
+    public static String resolveContentType(String contentType, String originalFilename) {
+        if (contentType != null && !contentType.trim().isEmpty()) {
+            return contentType;
+        }
+        return MediaTypeFactory.getMediaType(originalFilename)
+                .orElse(MediaType.APPLICATION_OCTET_STREAM)
+                .toString();
+    }
+
+    private ChatFile saveFileRecord(String originalFilename, String storedName, Path filePath, long fileSize,
+                                    String contentType, String userIp, String contentHash, int[] dimensions,
+                                    String storageEncoding) {
         ChatFile chatFile = new ChatFile(
                 originalFilename,
                 storedName,
                 filePath.toString(),
-                file.getSize(),
-                file.getContentType(),
+                fileSize,
+                contentType,
                 userIp
         );
+        chatFile.setContentHash(contentHash);
+        chatFile.setStorageEncoding(storageEncoding);
+        if (dimensions != null) {
+            chatFile.setImageWidth(dimensions[0]);
+            chatFile.setImageHeight(dimensions[1]);
+        }
 
-        return chatFileRepository.save(chatFile);
+        ChatFile savedFile = chatFileRepository.save(chatFile);
+        fileMetadataCache.put(savedFile);
+        chatCounters.onFileUploaded(savedFile);
+        return savedFile;
     }
 
     public ChatFile getFileById(Long fileId) {
-        return chatFileRepository.findById(fileId).orElse(null);
+        ChatFile cached = fileMetadataCache.get(fileId);
+        if (cached != null) {
+            return cached;
+        }
+        ChatFile chatFile = chatFileRepository.findById(fileId).orElse(null);
+        fileMetadataCache.put(chatFile);
+        return chatFile;
+    }
+
+    /**
+     * 批量获取文件信息（文件ID -> 文件），缓存未命中的用一次查询加载
+     */
+    public Map<Long, ChatFile> getFilesByIds(Collection<Long> fileIds) {
+        Map<Long, ChatFile> files = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long fileId : fileIds) {
+            ChatFile cached = fileMetadataCache.get(fileId);
+            if (cached != null) {
+                files.put(fileId, cached);
+            } else {
+                missing.add(fileId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (ChatFile chatFile : chatFileRepository.findAllById(missing)) {
+                fileMetadataCache.put(chatFile);
+                files.put(chatFile.getId(), chatFile);
+            }
+        }
+        return files;
     }
 
     public ChatFile getFileByStoredName(String storedName) {
-        return chatFileRepository.findByStoredName(storedName).orElse(null);
+        ChatFile cached = fileMetadataCache.getByStoredName(storedName);
+        if (cached != null) {
+            return cached;
+        }
+        ChatFile chatFile = chatFileRepository.findByStoredName(storedName).orElse(null);
+        fileMetadataCache.put(chatFile);
+        return chatFile;
     }
 
-    public List<ChatFile> getFilesByUser(String userIp) {
-        return chatFileRepository.findByUploadedByOrderByUploadedAtDesc(userIp);
+    /**
+     * 某个用户上传的ID小于beforeId的文件（按ID倒序），最多limit个
+     */
+    public List<ChatFile> getFilesByUser(String userIp, long beforeId, int limit) {
+        return chatFileRepository.findByUploadedByAndIdLessThanOrderByIdDesc(userIp, beforeId,
+                PageRequest.of(0, limit));
     }
 
     public boolean deleteFile(Long fileId, String userIp) {
-        ChatFile chatFile = chatFileRepository.findById(fileId).orElse(null);
+        ChatFile chatFile = getFileById(fileId);
         if (chatFile != null && chatFile.getUploadedBy().equals(userIp)) {
-            try {
-                // 删除物理文件
-                Path filePath = Paths.get(chatFile.getFilePath());
-                Files.deleteIfExists(filePath);
-
-                // 删除数据库记录
-                chatFileRepository.delete(chatFile);
-                return true;
-            } catch (IOException e) {
-                e.printStackTrace();
+            // 每条文件记录是对物理文件的一个引用，最后一个引用删除后才删除物理文件
+            String lockKey = chatFile.getContentHash() != null ? chatFile.getContentHash() : chatFile.getFilePath();
+            synchronized (blobLock(lockKey)) {
+                try {
+                    // 删除数据库记录
+                    chatFileRepository.delete(chatFile);
+                    fileMetadataCache.invalidate(fileId);
+                    chatCounters.onFileDeleted(chatFile);
+
+                    // 删除物理文件
+                    if (!chatFileRepository.existsByFilePath(chatFile.getFilePath())) {
+                        Files.deleteIfExists(Paths.get(chatFile.getFilePath()));
+                        if (chatFile.getContentHash() != null) {
+                            thumbnailService.delete(chatFile.getContentHash());
+                        }
+                    }
+                    return true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把没有文件记录引用的物理文件移到隔离目录，在该内容的锁内再次确认，不会与同时进行的去重、秒传冲突
+     * @return 是否已移动
+     */
+    public boolean quarantineOrphanBlob(Path blob, Path quarantineDir) throws IOException {
+        String name = blob.getFileName().toString();
+        String lockKey = name.endsWith(GZIP_SUFFIX) ? name.substring(0, name.length() - GZIP_SUFFIX.length()) : name;
+        synchronized (blobLock(lockKey)) {
+            if (!Files.exists(blob) || chatFileRepository.existsByFilePath(blob.toString())) {
+                return false;
+            }
+            Files.createDirectories(quarantineDir);
+            Files.move(blob, quarantineDir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+    }
+
+    /**
+     * 删除物理文件已不存在的文件记录
+     * @return 是否已删除
+     */
+    public boolean deleteDanglingRecord(ChatFile chatFile) {
+        String lockKey = chatFile.getContentHash() != null ? chatFile.getContentHash() : chatFile.getFilePath();
+        synchronized (blobLock(lockKey)) {
+            if (Files.exists(Paths.get(chatFile.getFilePath()))) {
+                return false;
+            }
+            chatFileRepository.delete(chatFile);
+            fileMetadataCache.invalidate(chatFile.getId());
+            chatCounters.onFileDeleted(chatFile);
+            return true;
+        }
+    }
+
+    public Map<String, Object> getStorageStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("deduplicatedUploads", deduplicatedUploads.get());
+        stats.put("instantUploads", instantUploads.get());
+        stats.put("compressedUploads", compressedUploads.get());
+        stats.put("compressionSavedBytes", compressionSavedBytes.get());
+        return stats;
+    }
+
+    /**
+     * 按内容类型或扩展名判断是否为文本等压缩率高的文件；已压缩的格式（图片、视频、zip等）不再压缩
+     */
+    private boolean isCompressible(String contentType, String originalFilename, long fileSize) {
+        if (!compressionEnabled || fileSize < compressionMinSize || ThumbnailService.isSupported(contentType)) {
+            return false;
+        }
+        if (contentType != null) {
+            String type = contentType.split(";")[0].trim().toLowerCase();
+            for (String pattern : compressibleTypes) {
+                pattern = pattern.trim();
+                if (pattern.endsWith("/*") ? type.startsWith(pattern.substring(0, pattern.length() - 1))
+                        : type.equals(pattern)) {
+                    return true;
+                }
+            }
+        }
+        if (originalFilename != null && originalFilename.contains(".")) {
+            String extension = originalFilename.substring(originalFilename.lastIndexOf('.') + 1).toLowerCase();
+            for (String compressible : compressibleExtensions) {
+                if (compressible.trim().equals(extension)) {
+                    return true;
+                }
             }
         }
         return false;
     }
 
+    /**
+     * 把临时文件gzip压缩到另一个临时文件，压缩后没有明显变小时放弃
+     * @return 压缩后的临时文件，放弃时返回null
+     */
+    private Path compressForStorage(Path tempPath, long fileSize) throws IOException {
+        Path compressed = tempPath.resolveSibling(tempPath.getFileName() + GZIP_SUFFIX);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed), 64 * 1024) {
+            {
+                def.setLevel(compressionLevel);
+            }
+        }) {
+            Files.copy(tempPath, out);
+        } catch (IOException e) {
+            Files.deleteIfExists(compressed);
+            throw e;
+        }
+        if (Files.size(compressed) > fileSize * compressionMaxRatio) {
+            Files.delete(compressed);
+            return null;
+        }
+        return compressed;
+    }
+
+    private Object blobLock(String key) {
+        return blobLocks[(key.hashCode() & 0x7fffffff) % blobLocks.length];
+    }
+
     public File getPhysicalFile(Long fileId) {
         ChatFile chatFile = getFileById(fileId);
         if (chatFile != null) {
@@ -0,0 +1,95 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.store.JpaMessageStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 冷数据归档任务
+ * 定期把早于max-age-days的消息分批移到归档文件，每批之间暂停batch-pause毫秒；
+ * 写入队列中有待入库的消息时让出，等实时写入空闲后再继续
+ */
+@Component
+@ConditionalOnProperty(name = "lanchat.storage.type", havingValue = "h2", matchIfMissing = true)
+public class MessageArchiver {
+
+    @Autowired
+    private JpaMessageStore jpaMessageStore;
+
+    @Autowired
+    private MessageWriteBehind messageWriteBehind;
+
+    @Value("${lanchat.archive.enabled:true}")
+    private boolean enabled;
+
+    @Value("${lanchat.archive.max-age-days:365}")
+    private int maxAgeDays;
+
+    @Value("${lanchat.archive.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${lanchat.archive.batch-pause:1000}")
+    private long batchPause;
+
+    @Value("${lanchat.archive.interval:3600000}")
+    private long interval;
+
+    private ScheduledExecutorService scheduler;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("message-archiver-");
+        threadFactory.setDaemon(true);
+        threadFactory.setThreadPriority(Thread.MIN_PRIORITY);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        scheduler.scheduleWithFixedDelay(this::archive, Math.min(interval, 60000), interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void archive() {
+        LocalDateTime cutoff = LocalDateTime.now().minusDays(maxAgeDays);
+        long archived = 0;
+        try {
+            while (running) {
+                if (messageWriteBehind.getQueueSize() > 0) {
+                    Thread.sleep(batchPause);
+                    continue;
+                }
+                int count = jpaMessageStore.archiveBefore(cutoff, batchSize);
+                if (count == 0) {
+                    break;
+                }
+                archived += count;
+                Thread.sleep(batchPause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("归档消息失败: " + e.getMessage());
+        }
+        if (archived > 0) {
+            System.out.println("已归档 " + archived + " 条早于 " + cutoff + " 的消息");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.store.MessageStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * 最近消息的内存环形缓冲区（按序号升序，包含已撤回的消息）
+ * 启动时从MessageStore预热，新消息和撤回在接收时同步更新，因此比数据库更新；
+ * 查询范围超出缓冲区时返回null，由调用方回退到数据库
+ */
+@Component
+public class MessageHistoryRing {
+
+    @Autowired
+    private MessageStore messageStore;
+
+    @Value("${lanchat.history.ring-size:5000}")
+    private int capacity;
+
+    private ChatMessage[] ring;
+    private int head = 0;   // 最旧元素的位置
+    private int size = 0;
+
+    // 缓冲区是否包含全部历史消息（从未淘汰过），为true时缓冲区之外没有更早的消息
+    private boolean complete = true;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @PostConstruct
+    public void init() {
+        ring = new ChatMessage[capacity];
+        List<ChatMessage> newest = messageStore.findNewest(capacity);
+        for (int i = newest.size() - 1; i >= 0; i--) {
+            add(newest.get(i));
+        }
+        complete = newest.size() < capacity;
+        System.out.println("最近消息缓冲区已预热: " + size + "/" + capacity + " 条");
+    }
+
+    /**
+     * 加入新消息，序号通常大于缓冲区中所有消息，直接追加到末尾
+     */
+    public void append(ChatMessage message) {
+        lock.writeLock().lock();
+        try {
+            add(message);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 用新版本（如撤回后的副本）替换缓冲区中的同ID消息，不在缓冲区中则忽略
+     */
+    public void replace(ChatMessage message) {
+        lock.writeLock().lock();
+        try {
+            int index = indexOf(message.getId());
+            if (index >= 0) {
+                ring[physical(index)] = message;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public ChatMessage get(Long messageId) {
+        lock.readLock().lock();
+        try {
+            int index = indexOf(messageId);
+            return index >= 0 ? ring[physical(index)] : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 从序号小于beforeId的消息开始向前取最多limit条满足条件的未撤回消息（按序号倒序）
+     * @return 缓冲区不足以给出完整结果时返回null
+     */
+    public List<ChatMessage> newestBefore(long beforeId, Predicate<ChatMessage> filter, int limit) {
+        lock.readLock().lock();
+        try {
+            List<ChatMessage> result = new ArrayList<>(Math.min(limit, size));
+            for (int i = lowerBound(beforeId) - 1; i >= 0 && result.size() < limit; i--) {
+                ChatMessage message = ring[physical(i)];
+                if (!Boolean.TRUE.equals(message.getRecalled()) && filter.test(message)) {
+                    result.add(message);
+                }
+            }
+            return result.size() >= limit || complete ? result : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 取序号大于afterId的最多limit条未撤回消息（按序号升序）
+     * @return afterId早于缓冲区覆盖的范围时返回null
+     */
+    public List<ChatMessage> oldestAfter(long afterId, int limit) {
+        lock.readLock().lock();
+        try {
+            if (!complete && (size == 0 || afterId < ring[head].getId() - 1)) {
+                return null;
+            }
+            List<ChatMessage> result = new ArrayList<>();
+            for (int i = lowerBound(afterId + 1); i < size && result.size() < limit; i++) {
+                ChatMessage message = ring[physical(i)];
+                if (!Boolean.TRUE.equals(message.getRecalled())) {
+                    result.add(message);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(ChatMessage message) {
+        if (size == capacity) {
+            // 淘汰最旧的消息
+            ring[head] = null;
+            head = (head + 1) % capacity;
+            size--;
+            complete = false;
+        }
+
+        // 并发接收时追加顺序可能与序号顺序略有出入，插入到正确位置
+        int index = size;
+        while (index > 0 && ring[physical(index - 1)].getId() > message.getId()) {
+            ring[physical(index)] = ring[physical(index - 1)];
+            index--;
+        }
+        ring[physical(index)] = message;
+        size++;
+    }
+
+    private int physical(int index) {
+        return (head + index) % capacity;
+    }
+
+    private int indexOf(Long messageId) {
+        int index = lowerBound(messageId);
+        return index < size && ring[physical(index)].getId().equals(messageId) ? index : -1;
+    }
+
+    /**
+     * 第一个序号不小于messageId的逻辑位置
+     */
+    private int lowerBound(long messageId) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ring[physical(mid)].getId() < messageId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,464 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.store.MessageStore;
+import cn.yaklo.lanchat.util.SearchTextUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 消息全文检索的内存倒排索引（词项 -> 按ID升序的消息ID列表），索引消息内容和用户名
+ * 保存消息时增量加入，撤回时记入删除集合，保存快照时再从倒排表中清除；
+ * 启动时加载快照，再在后台从MessageStore补齐快照之后的消息
+ */
+@Component
+public class MessageSearchIndex {
+
+    private static final int MAGIC = 0x4C435349;
+
+    // 单词前缀最多展开的词项数
+    private static final int MAX_PREFIX_EXPANSION = 64;
+
+    private static final int CATCH_UP_PAGE_SIZE = 1000;
+
+    @Autowired
+    private MessageStore messageStore;
+
+    @Value("${lanchat.search.index-file:./data/search/index.bin}")
+    private String indexFile;
+
+    @Value("${lanchat.search.snapshot-interval:300000}")
+    private long snapshotInterval;
+
+    // 按词项排序，单词可以按前缀范围查找
+    private final TreeMap<String, Postings> postings = new TreeMap<>();
+    // 已撤回的消息ID，只在内存中，保存快照时才从倒排表清除；
+    // 快照前崩溃时重启后的索引仍含这些ID，由调用方读取消息后按撤回状态和原文再校验排除
+    private final Set<Long> removed = new HashSet<>();
+    private long lastIndexedId = 0;
+    private volatile boolean dirty = false;
+    private volatile boolean ready = false;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // 定时快照和关闭时的快照不能同时写临时文件
+    private final Object saveLock = new Object();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        long snapshotId = load();
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("search-index-");
+        threadFactory.setDaemon(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        scheduler.execute(() -> catchUp(snapshotId));
+        scheduler.scheduleWithFixedDelay(this::saveIfDirty, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        if (ready) {
+            saveIfDirty();
+        }
+    }
+
+    public void add(ChatMessage message) {
+        if (Boolean.TRUE.equals(message.getRecalled())) {
+            return;
+        }
+        Set<String> tokens = SearchTextUtil.indexTokens(message.getContent());
+        tokens.addAll(SearchTextUtil.indexTokens(message.getUserName()));
+
+        lock.writeLock().lock();
+        try {
+            for (String token : tokens) {
+                postings.computeIfAbsent(token, key -> new Postings()).add(message.getId());
+            }
+            lastIndexedId = Math.max(lastIndexedId, message.getId());
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long messageId) {
+        lock.writeLock().lock();
+        try {
+            removed.add(messageId);
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 按序号倒序返回包含全部词项、且序号小于beforeId的候选消息ID，最多limit个
+     * 二元组可能跨词命中，调用方需再校验原文
+     */
+    public List<Long> candidates(List<SearchTextUtil.QueryToken> tokens, long beforeId, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>(tokens.size());
+            for (SearchTextUtil.QueryToken token : tokens) {
+                Postings list = token.prefix ? expandPrefix(token.text) : postings.get(token.text);
+                if (list == null || list.size == 0) {
+                    return new ArrayList<>();
+                }
+                lists.add(list);
+            }
+
+            // 从最短的列表出发，其余列表用二分查找判断是否包含
+            lists.sort((a, b) -> Integer.compare(a.size, b.size));
+            Postings shortest = lists.get(0);
+            List<Long> result = new ArrayList<>();
+            for (int i = shortest.lowerBound(beforeId) - 1; i >= 0 && result.size() < limit; i--) {
+                long id = shortest.ids[i];
+                if (removed.contains(id)) {
+                    continue;
+                }
+                boolean all = true;
+                for (int k = 1; k < lists.size() && all; k++) {
+                    all = lists.get(k).contains(id);
+                }
+                if (all) {
+                    result.add(id);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public Map<String, Object> snapshot() {
+        lock.readLock().lock();
+        try {
+            long entries = 0;
+            for (Postings list : postings.values()) {
+                entries += list.size;
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("ready", ready);
+            stats.put("terms", postings.size());
+            stats.put("postings", entries);
+            stats.put("removed", removed.size());
+            stats.put("lastIndexedId", lastIndexedId);
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查询词中是否有单词前缀匹配的词项超过MAX_PREFIX_EXPANSION个，超过时只展开了前面的词项，结果不完整
+     */
+    public boolean isPrefixTruncated(List<SearchTextUtil.QueryToken> tokens) {
+        lock.readLock().lock();
+        try {
+            for (SearchTextUtil.QueryToken token : tokens) {
+                if (!token.prefix) {
+                    continue;
+                }
+                int matched = 0;
+                for (String ignored : postings.subMap(token.text, true, token.text + Character.MAX_VALUE, false).keySet()) {
+                    if (++matched > MAX_PREFIX_EXPANSION) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 前缀展开后的并集，最多展开MAX_PREFIX_EXPANSION个词项
+     */
+    private Postings expandPrefix(String prefix) {
+        Map<String, Postings> range = postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        if (range.size() == 1) {
+            return range.values().iterator().next();
+        }
+        Postings union = new Postings();
+        int expanded = 0;
+        for (Postings list : range.values()) {
+            if (expanded++ >= MAX_PREFIX_EXPANSION) {
+                break;
+            }
+            union = union.merge(list);
+        }
+        return union;
+    }
+
+    /**
+     * 从快照之后补齐索引，实时加入的消息会被去重
+     */
+    private void catchUp(long afterId) {
+        long lastId = afterId;
+        long added = 0;
+        try {
+            while (true) {
+                List<ChatMessage> page = messageStore.findActiveAfter(lastId, CATCH_UP_PAGE_SIZE);
+                for (ChatMessage message : page) {
+                    add(message);
+                }
+                added += page.size();
+                if (page.size() < CATCH_UP_PAGE_SIZE) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getId();
+            }
+            ready = true;
+            System.out.println("全文索引已就绪，补齐 " + added + " 条消息");
+            saveIfDirty();
+        } catch (Exception e) {
+            System.err.println("补齐全文索引失败: " + e.getMessage());
+        }
+    }
+
+    // ---------------------------------------------------------------- 持久化
+
+    private long load() {
+        File file = new File(indexFile);
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new BufferedInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("索引文件格式不正确");
+            }
+            long snapshotId = in.readLong();
+            int terms = in.readInt();
+            for (int t = 0; t < terms; t++) {
+                String token = in.readUTF();
+                int size = in.readInt();
+                Postings list = new Postings(Math.max(size, 4));
+                long id = 0;
+                for (int i = 0; i < size; i++) {
+                    id += readVarLong(in);
+                    list.ids[i] = id;
+                }
+                list.size = size;
+                postings.put(token, list);
+            }
+            lastIndexedId = snapshotId;
+            System.out.println("已加载全文索引快照: " + terms + " 个词项，最大消息ID " + snapshotId);
+            return snapshotId;
+        } catch (IOException e) {
+            System.err.println("加载全文索引快照失败，将重新建立: " + e.getMessage());
+            postings.clear();
+            return 0;
+        }
+    }
+
+    /**
+     * 清除已撤回的消息后写入快照，先写临时文件再改名
+     * 写锁内只清除删除集合并复制各词项的ID数组，压缩和写盘在释放锁之后进行，不阻塞add
+     */
+    private void saveIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        synchronized (saveLock) {
+            long snapshotId;
+            List<String> tokens;
+            List<long[]> lists;
+            lock.writeLock().lock();
+            try {
+                if (!removed.isEmpty()) {
+                    for (Postings list : postings.values()) {
+                        list.removeAll(removed);
+                    }
+                    postings.values().removeIf(list -> list.size == 0);
+                    removed.clear();
+                }
+                snapshotId = lastIndexedId;
+                tokens = new ArrayList<>(postings.size());
+                lists = new ArrayList<>(postings.size());
+                for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                    tokens.add(entry.getKey());
+                    lists.add(Arrays.copyOf(entry.getValue().ids, entry.getValue().size));
+                }
+                // 复制之后的修改由下一次快照保存
+                dirty = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            try {
+                File file = new File(indexFile);
+                File parent = file.getAbsoluteFile().getParentFile();
+                if (!parent.exists() && !parent.mkdirs()) {
+                    throw new IOException("无法创建索引目录: " + parent);
+                }
+                File temp = new File(parent, file.getName() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temp))))) {
+                    out.writeInt(MAGIC);
+                    out.writeLong(snapshotId);
+                    out.writeInt(tokens.size());
+                    for (int t = 0; t < tokens.size(); t++) {
+                        long[] ids = lists.get(t);
+                        out.writeUTF(tokens.get(t));
+                        out.writeInt(ids.length);
+                        long previous = 0;
+                        for (long id : ids) {
+                            writeVarLong(out, id - previous);
+                            previous = id;
+                        }
+                    }
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                dirty = true;
+                System.err.println("保存全文索引快照失败: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * 按升序排列、不重复的消息ID列表
+     */
+    private static class Postings {
+        private long[] ids;
+        private int size = 0;
+
+        Postings() {
+            this(4);
+        }
+
+        Postings(int capacity) {
+            ids = new long[capacity];
+        }
+
+        /**
+         * 新消息通常ID最大，从末尾向前找插入位置
+         */
+        void add(long id) {
+            int index = size;
+            while (index > 0 && ids[index - 1] > id) {
+                index--;
+            }
+            if (index > 0 && ids[index - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        boolean contains(long id) {
+            int index = lowerBound(id);
+            return index < size && ids[index] == id;
+        }
+
+        /**
+         * 第一个不小于id的位置
+         */
+        int lowerBound(long id) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid] < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void removeAll(Set<Long> removedIds) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!removedIds.contains(ids[i])) {
+                    ids[kept++] = ids[i];
+                }
+            }
+            size = kept;
+        }
+
+        Postings merge(Postings other) {
+            Postings merged = new Postings(Math.max(size + other.size, 4));
+            int i = 0;
+            int j = 0;
+            while (i < size || j < other.size) {
+                long next;
+                if (j >= other.size || (i < size && ids[i] <= other.ids[j])) {
+                    next = ids[i++];
+                    if (j < other.size && other.ids[j] == next) {
+                        j++;
+                    }
+                } else {
+                    next = other.ids[j++];
+                }
+                merged.ids[merged.size++] = next;
+            }
+            return merged;
+        }
+    }
+}
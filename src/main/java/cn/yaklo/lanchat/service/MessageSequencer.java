@@ -0,0 +1,100 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.store.MessageStore;
+import cn.yaklo.lanchat.util.SequenceUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+
+/**
+ * 消息定序器
+ * 所有新消息在同一把锁下依次获得单调递增的序号（即消息ID）和不回退的时间戳，并按序号顺序进入写入队列；
+ * 序号从数据库序列按块预留，每块只访问一次数据库，重启后不会复用已经广播过的ID
+ */
+@Component
+public class MessageSequencer {
+
+    private static final String SEQUENCE_NAME = "chat_message_seq";
+
+    @Autowired
+    private MessageStore messageStore;
+
+    @Autowired
+    private MessageWriteBehind messageWriteBehind;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${lanchat.persistence.sequence.block-size:100}")
+    private int blockSize;
+
+    // 当前预留块中下一个可用的序号和块的上界（不含），由this锁保护
+    private long nextSequence;
+    private long blockEnd;
+    private LocalDateTime lastTimestamp;
+
+    @PostConstruct
+    public void init() {
+        Long maxId = messageStore.findMaxId();
+        SequenceUtil.ensureSequence(jdbcTemplate, SEQUENCE_NAME, maxId != null ? maxId : 0L, blockSize);
+        reserveBlock();
+        System.out.println("消息序号从 " + nextSequence + " 开始分配，每次预留 " + blockSize + " 个");
+    }
+
+    /**
+     * 为新消息分配序号和时间戳，并提交到写入队列
+     * 锁内只做不阻塞的提交，保证按序号顺序入队；队列已满时在锁外等待空位后重新分配，
+     * 其他发送者不会因为一个等待中的发送者排队，整体最多等待offer-timeout毫秒
+     * @throws IllegalStateException 写入队列持续已满或应用正在关闭
+     */
+    public ChatMessage accept(ChatMessage message) {
+        long deadline = System.currentTimeMillis() + messageWriteBehind.getOfferTimeout();
+        while (!tryAccept(message)) {
+            messageWriteBehind.awaitCapacity(deadline);
+        }
+        return message;
+    }
+
+    /**
+     * 提交失败时序号不算分配出去，下一次仍使用同一个序号
+     */
+    private synchronized boolean tryAccept(ChatMessage message) {
+        if (nextSequence >= blockEnd) {
+            reserveBlock();
+        }
+
+        // 系统时钟回拨时沿用上一条的时间，保证时间顺序与序号顺序一致
+        LocalDateTime now = LocalDateTime.now();
+        if (lastTimestamp != null && now.isBefore(lastTimestamp)) {
+            now = lastTimestamp;
+        }
+
+        message.setId(nextSequence);
+        message.setTimestamp(now);
+        if (!messageWriteBehind.trySubmit(message)) {
+            return false;
+        }
+
+        nextSequence++;
+        lastTimestamp = now;
+        return true;
+    }
+
+    /**
+     * 最后分配出去的序号，尚未分配过时为当前块起点减一
+     */
+    public synchronized long getLastSequence() {
+        return nextSequence - 1;
+    }
+
+    private void reserveBlock() {
+        long start = SequenceUtil.nextValue(jdbcTemplate, SEQUENCE_NAME);
+        nextSequence = start;
+        blockEnd = start + blockSize;
+    }
+}
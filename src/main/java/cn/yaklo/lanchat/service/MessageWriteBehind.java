@@ -0,0 +1,223 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.store.MessageStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天消息的异步批量入库
+ * 消息先进入有界缓冲区，由单个写线程按条数或时间触发，批量提交到MessageStore；
+ * 缓冲区满时调用方最多等待offer-timeout毫秒（背压），关闭应用时会先把缓冲区写完
+ */
+@Component
+public class MessageWriteBehind {
+
+    @Autowired
+    private MessageStore messageStore;
+
+    @Value("${lanchat.persistence.write-behind.capacity:10000}")
+    private int capacity;
+
+    @Value("${lanchat.persistence.write-behind.batch-size:200}")
+    private int batchSize;
+
+    @Value("${lanchat.persistence.write-behind.flush-interval:200}")
+    private long flushInterval;
+
+    @Value("${lanchat.persistence.write-behind.offer-timeout:2000}")
+    private long offerTimeout;
+
+    private BlockingQueue<ChatMessage> queue;
+    private Thread writer;
+    private volatile boolean running = true;
+
+    // 已接收但尚未提交的消息，供读取和撤回使用
+    private final Map<Long, ChatMessage> pending = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<>(capacity);
+        writer = new Thread(this::runWriter, "message-writer");
+        writer.start();
+    }
+
+    /**
+     * 关闭时停止接收并写完缓冲区中的所有消息
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        writer.join();
+        System.out.println("消息写入线程已停止，剩余未写入: " + queue.size());
+    }
+
+    /**
+     * 提交一条待写入（新增或更新）的消息
+     * @throws IllegalStateException 缓冲区持续已满或应用正在关闭
+     */
+    public void submit(ChatMessage message) {
+        if (!offer(message, offerTimeout)) {
+            throw new IllegalStateException("消息写入队列已满，请稍后重试");
+        }
+    }
+
+    /**
+     * 不等待地提交，缓冲区已满时返回false
+     * @throws IllegalStateException 应用正在关闭
+     */
+    public boolean trySubmit(ChatMessage message) {
+        return offer(message, 0);
+    }
+
+    /**
+     * 等待缓冲区出现空位，最多等到deadline（毫秒时间戳），与trySubmit配合，在锁外等待
+     * @throws IllegalStateException 到期仍没有空位
+     */
+    public void awaitCapacity(long deadline) {
+        while (queue.remainingCapacity() == 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IllegalStateException("消息写入队列已满，请稍后重试");
+            }
+            try {
+                Thread.sleep(Math.min(remaining, 10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("消息写入队列已满，请稍后重试");
+            }
+        }
+    }
+
+    public long getOfferTimeout() {
+        return offerTimeout;
+    }
+
+    private boolean offer(ChatMessage message, long timeout) {
+        if (!running) {
+            throw new IllegalStateException("应用正在关闭，无法保存消息");
+        }
+        ChatMessage previous = pending.put(message.getId(), message);
+        boolean accepted;
+        try {
+            accepted = timeout > 0
+                    ? queue.offer(message, timeout, TimeUnit.MILLISECONDS)
+                    : queue.offer(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        }
+        if (!accepted) {
+            // 被拒绝的是撤回副本时，原消息可能仍在队列中等待写入，要恢复原来的版本而不是删除
+            // 原消息若恰好已写完，恢复的版本与库中一致，下次提交同一ID时被替换
+            if (previous != null) {
+                pending.replace(message.getId(), message, previous);
+            } else {
+                pending.remove(message.getId(), message);
+            }
+        }
+        return accepted;
+    }
+
+    public ChatMessage getPending(Long messageId) {
+        return pending.get(messageId);
+    }
+
+    /**
+     * 尚未提交的消息，按ID升序
+     */
+    public List<ChatMessage> getPendingMessages() {
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ChatMessage> messages = new ArrayList<>(pending.values());
+        messages.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+        return messages;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void runWriter() {
+        List<ChatMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                ChatMessage first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // 凑满一批或等到刷新间隔
+                long deadline = System.currentTimeMillis() + flushInterval;
+                while (batch.size() < batchSize && running) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    ChatMessage next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                queue.drainTo(batch, batchSize - batch.size());
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                // 关闭过程中不响应中断，继续写完缓冲区
+            }
+            batch.clear();
+        }
+    }
+
+    private void flush(List<ChatMessage> batch) throws InterruptedException {
+        try {
+            messageStore.saveAll(batch);
+            release(batch);
+            return;
+        } catch (Exception e) {
+            System.err.println("批量写入消息失败，改为逐条写入: " + e.getMessage());
+        }
+
+        // 逐条写入，数据本身有问题的消息丢弃，数据库不可用时持续重试
+        for (ChatMessage message : batch) {
+            long backoff = 100;
+            while (true) {
+                try {
+                    messageStore.saveAll(Collections.singletonList(message));
+                    break;
+                } catch (DataIntegrityViolationException | IllegalArgumentException e) {
+                    System.err.println("消息无法保存，已丢弃: " + message.getId() + " - " + e.getMessage());
+                    break;
+                } catch (Exception e) {
+                    System.err.println("写入消息失败，" + backoff + "ms后重试: " + e.getMessage());
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, 5000);
+                }
+            }
+            release(Collections.singletonList(message));
+        }
+    }
+
+    private void release(List<ChatMessage> written) {
+        for (ChatMessage message : written) {
+            pending.remove(message.getId(), message);
+        }
+    }
+}
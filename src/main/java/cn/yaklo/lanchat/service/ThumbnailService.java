@@ -0,0 +1,333 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatFile;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 图片缩略图和预览图
+ * 上传完成后由后台线程池按内容摘要生成，相同内容只生成一次，以JPEG缓存在磁盘上；
+ * 解码时按目标尺寸降采样读取，大图不会整张解码到内存中。
+ * 只支持ImageIO能解码的格式（JPEG、PNG、GIF、BMP），视频没有可用的解码器，不生成缩略图。
+ * 无法解码或过大的图片留下失败标记文件，之后不再重复解码
+ */
+@Service
+public class ThumbnailService {
+
+    // 聊天列表中显示的缩略图，长边不超过该值
+    public static final int THUMB_SIZE = 320;
+
+    // 点击查看的预览图，长边不超过该值
+    public static final int PREVIEW_SIZE = 1280;
+
+    private static final float JPEG_QUALITY = 0.8f;
+
+    private static final String FAILED_SUFFIX = ".failed";
+
+    @Value("${lanchat.thumbnail.dir:./data/thumbs}")
+    private String thumbnailDir;
+
+    @Value("${lanchat.thumbnail.threads:2}")
+    private int threads;
+
+    @Value("${lanchat.thumbnail.queue-size:1000}")
+    private int queueSize;
+
+    // 像素数超过该值的图片不生成缩略图
+    @Value("${lanchat.thumbnail.max-pixels:100000000}")
+    private long maxPixels;
+
+    private ThreadPoolExecutor executor;
+
+    // 正在生成的任务，按内容摘要去重
+    private final Map<String, CompletableFuture<Boolean>> inflight = new ConcurrentHashMap<>();
+
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(Paths.get(thumbnailDir));
+        ImageIO.setUseCache(false);
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("thumbnail-");
+        threadFactory.setDaemon(true);
+        threadFactory.setThreadPriority(Thread.NORM_PRIORITY - 1);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueSize), threadFactory);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public static boolean isSupported(String contentType) {
+        return contentType != null && contentType.startsWith("image/")
+                && ImageIO.getImageReadersByMIMEType(contentType).hasNext();
+    }
+
+    /**
+     * 按长边不超过bound等比缩小后的尺寸，原图较小时不放大
+     */
+    public static int[] scaledSize(int width, int height, int bound) {
+        double scale = Math.min(1.0, (double) bound / Math.max(width, height));
+        return new int[]{Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale))};
+    }
+
+    /**
+     * 只读取图片头部得到宽高，不解码像素；不是支持的图片时返回null
+     */
+    public int[] readDimensions(Path path, String contentType) {
+        if (!isSupported(contentType)) {
+            return null;
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(path.toFile())) {
+            ImageReader reader = getReader(input);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                reader.setInput(input, true, true);
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 提交后台生成任务，已生成或正在生成时直接返回
+     */
+    public CompletableFuture<Boolean> submit(ChatFile chatFile) {
+        String contentHash = chatFile.getContentHash();
+        if (contentHash == null || !isSupported(chatFile.getContentType())) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (Files.exists(path(contentHash, THUMB_SIZE))) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (isFailed(contentHash)) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        Path source = Paths.get(chatFile.getFilePath());
+        CompletableFuture<Boolean> future = inflight.computeIfAbsent(contentHash, hash -> {
+            try {
+                return CompletableFuture.supplyAsync(() -> generate(hash, source), executor);
+            } catch (RejectedExecutionException e) {
+                // 队列已满，下次请求缩略图时再生成
+                return CompletableFuture.completedFuture(false);
+            }
+        });
+        future.whenComplete((result, error) -> inflight.remove(contentHash, future));
+        return future;
+    }
+
+    /**
+     * 缩略图或预览图文件，尚未生成时提交任务并最多等待timeout毫秒（为0时不等待）
+     * @return 不支持的文件、生成失败或超时返回null，可用isFailed区分失败和尚未生成
+     */
+    public Path getThumbnail(ChatFile chatFile, int size, long timeout) {
+        if (chatFile.getContentHash() == null || !isSupported(chatFile.getContentType())) {
+            return null;
+        }
+        Path path = path(chatFile.getContentHash(), size);
+        if (Files.exists(path)) {
+            return path;
+        }
+        CompletableFuture<Boolean> future = submit(chatFile);
+        if (timeout > 0) {
+            try {
+                future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                return null;
+            }
+        }
+        return Files.exists(path) ? path : null;
+    }
+
+    /**
+     * 该内容之前生成缩略图失败（无法解码或图片过大）
+     */
+    public boolean isFailed(String contentHash) {
+        return contentHash != null && Files.exists(failedMarker(contentHash));
+    }
+
+    /**
+     * 原文件删除后删除对应的缩略图和预览图
+     */
+    public void delete(String contentHash) {
+        try {
+            Files.deleteIfExists(path(contentHash, THUMB_SIZE));
+            Files.deleteIfExists(path(contentHash, PREVIEW_SIZE));
+            Files.deleteIfExists(failedMarker(contentHash));
+        } catch (IOException e) {
+            System.err.println("删除缩略图失败: " + e.getMessage());
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", executor.getQueue().size());
+        stats.put("active", executor.getActiveCount());
+        stats.put("generated", generated.get());
+        stats.put("failed", failed.get());
+        return stats;
+    }
+
+    private boolean generate(String contentHash, Path source) {
+        try {
+            BufferedImage preview;
+            try {
+                preview = decode(source, PREVIEW_SIZE);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("解码图片失败: " + source + " " + e.getMessage());
+                preview = null;
+            }
+            if (preview == null) {
+                // 内容不变结果就不变，记录失败避免每次请求都重新解码
+                failed.incrementAndGet();
+                markFailed(contentHash);
+                return false;
+            }
+            preview = resize(preview, PREVIEW_SIZE);
+            writeJpeg(preview, path(contentHash, PREVIEW_SIZE));
+            writeJpeg(resize(preview, THUMB_SIZE), path(contentHash, THUMB_SIZE));
+            generated.incrementAndGet();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            System.err.println("生成缩略图失败: " + source + " " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 解码第一帧；原图远大于目标尺寸时按整数倍降采样读取，解码结果不小于目标尺寸
+     */
+    private BufferedImage decode(Path source, int bound) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source.toFile())) {
+            ImageReader reader = getReader(input);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > maxPixels) {
+                    System.err.println("图片过大，不生成缩略图: " + source + " " + width + "x" + height);
+                    return null;
+                }
+                int subsampling = Math.max(1, Math.max(width, height) / bound);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 缩放到长边不超过bound，转为不透明的RGB（透明部分填白色），JPEG不支持透明通道
+     */
+    private BufferedImage resize(BufferedImage image, int bound) {
+        int[] size = scaledSize(image.getWidth(), image.getHeight(), bound);
+        BufferedImage result = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = result.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, size[0], size[1]);
+            graphics.drawImage(image, 0, 0, size[0], size[1], null);
+        } finally {
+            graphics.dispose();
+        }
+        return result;
+    }
+
+    private void writeJpeg(BufferedImage image, Path target) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (ImageOutputStream output = ImageIO.createImageOutputStream(temp.toFile())) {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+                writer.setOutput(output);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            writer.dispose();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void markFailed(String contentHash) {
+        try {
+            Files.write(failedMarker(contentHash), new byte[0]);
+        } catch (IOException e) {
+            System.err.println("记录缩略图失败标记失败: " + e.getMessage());
+        }
+    }
+
+    private ImageReader getReader(ImageInputStream input) {
+        if (input == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    private Path path(String contentHash, int size) {
+        return Paths.get(thumbnailDir, contentHash + "-" + size + ".jpg");
+    }
+
+    private Path failedMarker(String contentHash) {
+        return Paths.get(thumbnailDir, contentHash + FAILED_SUFFIX);
+    }
+}
@@ -1,13 +1,19 @@
 package cn.yaklo.lanchat.service;
 
 import cn.yaklo.lanchat.util.IpUtil;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
 
 @Service
 public class UserService {
 
+    // 允许调用管理接口的客户端IP，逗号分隔
+    @Value("${lanchat.admin.allowed-ips:127.0.0.1,0:0:0:0:0:0:0:1}")
+    private String adminAllowedIps;
+
     public String getUserName(HttpServletRequest request) {
         String ip = getClientIp(request);
         return formatUserName(ip);
@@ -17,6 +23,13 @@ public class UserService {
         return IpUtil.getClientIpAddress(request);
     }
 
+    /**
+     * 请求是否来自允许调用管理接口的IP
+     */
+    public boolean isAdmin(HttpServletRequest request) {
+        return Arrays.asList(adminAllowedIps.split("\\s*,\\s*")).contains(getClientIp(request));
+    }
+
     public String formatUserName(String ip) {
         // 统一返回"无名氏"作为默认用户名
         return "无名氏";
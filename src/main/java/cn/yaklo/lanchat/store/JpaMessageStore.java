@@ -0,0 +1,263 @@
+package cn.yaklo.lanchat.store;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.repository.ChatMessageRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 基于H2/JPA的消息存储（默认）
+ * 超过一定时间的旧消息由MessageArchiver移到MessageArchive，查询时热表结果不足再从归档补齐：
+ * 归档中的消息ID都小于热表中的消息ID，因此两部分结果可以直接拼接
+ */
+@Component
+@ConditionalOnProperty(name = "lanchat.storage.type", havingValue = "h2", matchIfMissing = true)
+public class JpaMessageStore implements MessageStore {
+
+    @Autowired
+    private ChatMessageRepository chatMessageRepository;
+
+    @Autowired
+    private MessageArchive messageArchive;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        System.out.println("消息存储: H2数据库");
+
+        // 归档文件已写入但上次退出前未来得及删除的热表消息
+        long archivedMaxId = messageArchive.getMaxId();
+        if (archivedMaxId > 0) {
+            Integer deleted = transactionTemplate.execute(status -> chatMessageRepository.deleteArchived(archivedMaxId));
+            if (deleted != null && deleted > 0) {
+                System.out.println("已删除 " + deleted + " 条已归档但仍在热表中的消息");
+            }
+        }
+    }
+
+    @Override
+    public void saveAll(List<ChatMessage> messages) {
+        messageArchive.getLock().lock();
+        try {
+            // 已归档的消息只可能被撤回，撤回记录写到归档中
+            long archivedMaxId = messageArchive.getMaxId();
+            List<ChatMessage> hot = new ArrayList<>(messages.size());
+            for (ChatMessage message : messages) {
+                if (!message.isNew() && message.getId() <= archivedMaxId) {
+                    if (Boolean.TRUE.equals(message.getRecalled())) {
+                        messageArchive.recall(message);
+                    }
+                } else {
+                    hot.add(message);
+                }
+            }
+            if (!hot.isEmpty()) {
+                transactionTemplate.executeWithoutResult(status -> chatMessageRepository.saveAll(hot));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("写入归档撤回记录失败", e);
+        } finally {
+            messageArchive.getLock().unlock();
+        }
+    }
+
+    /**
+     * 把最旧的、时间早于cutoff的至多batchSize条消息写入归档并从热表删除
+     * @return 归档的消息数
+     */
+    public int archiveBefore(LocalDateTime cutoff, int batchSize) throws IOException {
+        messageArchive.getLock().lock();
+        try {
+            // 只取按ID连续的最旧一段，保证热表中剩下的ID都大于归档的最大ID
+            List<ChatMessage> batch = new ArrayList<>(batchSize);
+            for (ChatMessage message : chatMessageRepository.findAllByOrderByIdAsc(PageRequest.of(0, batchSize))) {
+                if (!message.getTimestamp().isBefore(cutoff)) {
+                    break;
+                }
+                batch.add(message);
+            }
+            if (batch.isEmpty()) {
+                return 0;
+            }
+
+            messageArchive.write(batch);
+            long archivedMaxId = batch.get(batch.size() - 1).getId();
+            transactionTemplate.executeWithoutResult(status -> chatMessageRepository.deleteArchived(archivedMaxId));
+            return batch.size();
+        } finally {
+            messageArchive.getLock().unlock();
+        }
+    }
+
+    @Override
+    public ChatMessage findById(long messageId) {
+        if (messageId <= messageArchive.getMaxId()) {
+            return messageArchive.findById(messageId);
+        }
+        return chatMessageRepository.findById(messageId).orElse(null);
+    }
+
+    @Override
+    public List<ChatMessage> findByIds(Collection<Long> messageIds) {
+        long archivedMaxId = messageArchive.getMaxId();
+        List<Long> hotIds = new ArrayList<>(messageIds.size());
+        List<ChatMessage> messages = new ArrayList<>(messageIds.size());
+        for (Long messageId : messageIds) {
+            if (messageId <= archivedMaxId) {
+                ChatMessage archived = messageArchive.findById(messageId);
+                if (archived != null) {
+                    messages.add(archived);
+                }
+            } else {
+                hotIds.add(messageId);
+            }
+        }
+        if (!hotIds.isEmpty()) {
+            messages.addAll(chatMessageRepository.findAllById(hotIds));
+        }
+        return messages;
+    }
+
+    @Override
+    public List<ChatMessage> findActiveBefore(long beforeId, int limit) {
+        List<ChatMessage> messages = hot(chatMessageRepository.findMessagesBeforeId(beforeId, PageRequest.of(0, limit)));
+        if (messages.size() < limit) {
+            messages.addAll(messageArchive.findBefore(beforeId, this::isActive, limit - messages.size()));
+        }
+        return messages;
+    }
+
+    @Override
+    public List<ChatMessage> findActiveAfter(long afterId, int limit) {
+        List<ChatMessage> messages = new ArrayList<>();
+        if (afterId < messageArchive.getMaxId()) {
+            messages.addAll(messageArchive.findAfter(afterId, this::isActive, limit));
+        }
+        if (messages.size() < limit) {
+            messages.addAll(hot(chatMessageRepository.findMessagesAfterId(afterId,
+                    PageRequest.of(0, limit - messages.size()))));
+        }
+        return messages;
+    }
+
+    @Override
+    public List<ChatMessage> findActiveBeforeTimestamp(LocalDateTime timestamp, int limit) {
+        List<ChatMessage> messages = hot(chatMessageRepository.findMessagesBefore(timestamp, PageRequest.of(0, limit)));
+        if (messages.size() < limit) {
+            messages.addAll(messageArchive.findBefore(Long.MAX_VALUE,
+                    message -> isActive(message) && message.getTimestamp().isBefore(timestamp),
+                    limit - messages.size()));
+        }
+        return messages;
+    }
+
+    @Override
+    public List<ChatMessage> findNewest(int limit) {
+        List<ChatMessage> messages = hot(chatMessageRepository.findAllByOrderByIdDesc(PageRequest.of(0, limit)));
+        if (messages.size() < limit) {
+            messages.addAll(messageArchive.findBefore(Long.MAX_VALUE, message -> true, limit - messages.size()));
+        }
+        return messages;
+    }
+
+    @Override
+    public List<ChatMessage> findByUserBefore(String userIp, long beforeId, int limit) {
+        List<ChatMessage> messages = hot(chatMessageRepository.findByUserBeforeId(userIp, beforeId,
+                PageRequest.of(0, limit)));
+        if (messages.size() < limit) {
+            messages.addAll(messageArchive.findBefore(beforeId,
+                    message -> userIp.equals(message.getUserIp()), limit - messages.size()));
+        }
+        return messages;
+    }
+
+    @Override
+    public void forEachActiveAfter(long afterId, Consumer<ChatMessage> consumer) {
+        if (afterId < messageArchive.getMaxId()) {
+            messageArchive.forEachAfter(afterId, this::isActive, consumer);
+        }
+
+        // 只读事务中以游标逐行读取，每条消息用完即从持久化上下文中分离，内存占用与消息总数无关
+        long hotAfterId = Math.max(afterId, messageArchive.getMaxId());
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+        readOnly.executeWithoutResult(status -> {
+            try (Stream<ChatMessage> stream = chatMessageRepository.streamMessagesAfterId(hotAfterId)) {
+                stream.forEach(message -> {
+                    entityManager.detach(message);
+                    consumer.accept(message);
+                });
+            }
+        });
+    }
+
+    @Override
+    public Long findMaxId() {
+        Long maxId = chatMessageRepository.findMaxId();
+        if (maxId == null && messageArchive.getMaxId() > 0) {
+            return messageArchive.getMaxId();
+        }
+        return maxId;
+    }
+
+    @Override
+    public long count() {
+        return chatMessageRepository.count() + messageArchive.count();
+    }
+
+    @Override
+    public long countActive() {
+        return chatMessageRepository.countByRecalledFalse() + messageArchive.countActive();
+    }
+
+    @Override
+    public Map<String, Long> countActiveByUser() {
+        Map<String, Long> counts = new HashMap<>(messageArchive.countActiveByUser());
+        for (Object[] row : chatMessageRepository.countActiveMessagesByUser()) {
+            counts.merge((String) row[0], (Long) row[1], Long::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * 去掉归档进行中已写入归档、尚未从热表删除的消息，避免同一条消息出现两次
+     */
+    private List<ChatMessage> hot(List<ChatMessage> messages) {
+        long archivedMaxId = messageArchive.getMaxId();
+        if (archivedMaxId == 0) {
+            return new ArrayList<>(messages);
+        }
+        return messages.stream().filter(message -> message.getId() > archivedMaxId).collect(Collectors.toList());
+    }
+
+    private boolean isActive(ChatMessage message) {
+        return !Boolean.TRUE.equals(message.getRecalled());
+    }
+}
@@ -0,0 +1,466 @@
+package cn.yaklo.lanchat.store;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 冷数据归档：从chat_messages表移出的旧消息，按ID区间写成gzip压缩的不可变文件（%020d-%020d.arc.gz）
+ * 文件头记录条数和按用户统计的未撤回条数，启动时只读取文件头；消息内容在查询时解压，最近读过的文件缓存在内存中。
+ * 归档文件不再修改，撤回已归档的消息记在recalls.log中，读取时覆盖。
+ */
+@Component
+@ConditionalOnProperty(name = "lanchat.storage.type", havingValue = "h2", matchIfMissing = true)
+public class MessageArchive {
+
+    private static final int MAGIC = 0x4C434152;
+
+    private static final String RECALLED_CONTENT = "[消息已被撤回]";
+
+    @Value("${lanchat.archive.dir:./data/archive}")
+    private String archiveDir;
+
+    // 解压后缓存在内存中的归档文件数
+    @Value("${lanchat.archive.cached-files:4}")
+    private int cachedFiles;
+
+    // 归档写入与热表更新互斥，避免归档过程中的撤回丢失
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // 起始ID -> 归档文件，写入只在持有lock时进行
+    private final TreeMap<Long, ArchiveFile> files = new TreeMap<>();
+    private volatile long maxId = 0;
+
+    // 已归档消息的撤回时间
+    private final Map<Long, LocalDateTime> recalls = new ConcurrentHashMap<>();
+    private final Map<String, Long> recalledByUser = new HashMap<>();
+
+    // 最近解压的归档文件（起始ID -> 按ID升序的消息），按访问顺序淘汰
+    private final LinkedHashMap<Long, List<ChatMessage>> decoded = new LinkedHashMap<>(16, 0.75f, true);
+
+    @PostConstruct
+    public void init() throws IOException {
+        File dir = new File(archiveDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建归档目录: " + dir.getAbsolutePath());
+        }
+
+        File[] archives = dir.listFiles((d, name) -> name.matches("\\d{20}-\\d{20}\\.arc\\.gz"));
+        if (archives != null) {
+            Arrays.sort(archives);
+            for (File file : archives) {
+                ArchiveFile archive = readHeader(file);
+                files.put(archive.minId, archive);
+                maxId = Math.max(maxId, archive.maxId);
+            }
+        }
+
+        File recallLog = new File(dir, "recalls.log");
+        if (recallLog.exists()) {
+            for (String line : Files.readAllLines(recallLog.toPath(), StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                if (parts.length == 4) {
+                    LocalDateTime recalledAt = LocalDateTime.ofEpochSecond(
+                            Long.parseLong(parts[1]), Integer.parseInt(parts[2]), ZoneOffset.UTC);
+                    if (recalls.put(Long.parseLong(parts[0]), recalledAt) == null) {
+                        recalledByUser.merge(parts[3], 1L, Long::sum);
+                    }
+                }
+            }
+        }
+
+        if (!files.isEmpty()) {
+            System.out.println("已加载 " + files.size() + " 个归档文件，消息 " + count() + " 条，最大ID " + maxId);
+        }
+    }
+
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
+    /**
+     * 已归档的最大消息ID，没有归档时为0；热表中的消息ID都大于它
+     */
+    public long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * 把一批按ID升序的消息写成一个归档文件，先写临时文件并刷盘再改名，调用方需持有lock
+     */
+    public void write(List<ChatMessage> batch) throws IOException {
+        long minId = batch.get(0).getId();
+        long lastId = batch.get(batch.size() - 1).getId();
+        File target = new File(archiveDir, String.format("%020d-%020d.arc.gz", minId, lastId));
+        File temp = new File(archiveDir, target.getName() + ".tmp");
+
+        ArchiveFile archive = new ArchiveFile(target, minId, lastId);
+        for (ChatMessage message : batch) {
+            archive.count++;
+            if (!Boolean.TRUE.equals(message.getRecalled())) {
+                archive.activeByUser.merge(message.getUserIp(), 1L, Long::sum);
+            }
+        }
+
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(fileOut);
+            GZIPOutputStream gzip = new GZIPOutputStream(buffered);
+            DataOutputStream out = new DataOutputStream(gzip);
+            out.writeInt(MAGIC);
+            out.writeInt(archive.count);
+            out.writeInt(archive.activeByUser.size());
+            for (Map.Entry<String, Long> entry : archive.activeByUser.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            for (ChatMessage message : batch) {
+                writeMessage(out, message);
+            }
+            out.flush();
+            gzip.finish();
+            buffered.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (files) {
+            files.put(minId, archive);
+        }
+        maxId = lastId;
+    }
+
+    /**
+     * 撤回一条已归档的消息，追加到recalls.log，调用方需持有lock
+     */
+    public void recall(ChatMessage message) throws IOException {
+        LocalDateTime recalledAt = message.getRecalledAt() != null ? message.getRecalledAt() : LocalDateTime.now();
+        String line = message.getId() + "\t" + recalledAt.toEpochSecond(ZoneOffset.UTC) + "\t"
+                + recalledAt.getNano() + "\t" + message.getUserIp() + "\n";
+        Files.write(new File(archiveDir, "recalls.log").toPath(), line.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        if (recalls.put(message.getId(), recalledAt) == null) {
+            synchronized (files) {
+                recalledByUser.merge(message.getUserIp(), 1L, Long::sum);
+            }
+        }
+    }
+
+    public ChatMessage findById(long messageId) {
+        ArchiveFile archive = fileFor(messageId);
+        if (archive == null) {
+            return null;
+        }
+        for (ChatMessage message : load(archive)) {
+            if (message.getId() == messageId) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 序号小于beforeId且满足条件的消息，按序号倒序
+     */
+    public List<ChatMessage> findBefore(long beforeId, Predicate<ChatMessage> filter, int limit) {
+        List<ChatMessage> result = new ArrayList<>();
+        for (ArchiveFile archive : snapshot(true)) {
+            if (archive.minId >= beforeId) {
+                continue;
+            }
+            List<ChatMessage> messages = load(archive);
+            for (int i = messages.size() - 1; i >= 0 && result.size() < limit; i--) {
+                ChatMessage message = messages.get(i);
+                if (message.getId() < beforeId && filter.test(message)) {
+                    result.add(message);
+                }
+            }
+            if (result.size() >= limit) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 序号大于afterId且满足条件的消息，按序号升序
+     */
+    public List<ChatMessage> findAfter(long afterId, Predicate<ChatMessage> filter, int limit) {
+        List<ChatMessage> result = new ArrayList<>();
+        for (ArchiveFile archive : snapshot(false)) {
+            if (archive.maxId <= afterId) {
+                continue;
+            }
+            for (ChatMessage message : load(archive)) {
+                if (message.getId() > afterId && filter.test(message)) {
+                    result.add(message);
+                    if (result.size() >= limit) {
+                        return result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 按序号升序逐条遍历序号大于afterId且满足条件的消息，逐个文件解压，不放入缓存
+     */
+    public void forEachAfter(long afterId, Predicate<ChatMessage> filter, Consumer<ChatMessage> consumer) {
+        for (ArchiveFile archive : snapshot(false)) {
+            if (archive.maxId <= afterId) {
+                continue;
+            }
+            for (ChatMessage message : applyRecalls(readMessages(archive))) {
+                if (message.getId() > afterId && filter.test(message)) {
+                    consumer.accept(message);
+                }
+            }
+        }
+    }
+
+    public long count() {
+        long count = 0;
+        for (ArchiveFile archive : snapshot(false)) {
+            count += archive.count;
+        }
+        return count;
+    }
+
+    public long countActive() {
+        long active = 0;
+        for (long value : countActiveByUser().values()) {
+            active += value;
+        }
+        return active;
+    }
+
+    public Map<String, Long> countActiveByUser() {
+        Map<String, Long> counts = new HashMap<>();
+        synchronized (files) {
+            for (ArchiveFile archive : files.values()) {
+                archive.activeByUser.forEach((user, value) -> counts.merge(user, value, Long::sum));
+            }
+            recalledByUser.forEach((user, value) -> counts.merge(user, -value, Long::sum));
+        }
+        return counts;
+    }
+
+    private ArchiveFile fileFor(long messageId) {
+        synchronized (files) {
+            Map.Entry<Long, ArchiveFile> entry = files.floorEntry(messageId);
+            return entry != null && entry.getValue().maxId >= messageId ? entry.getValue() : null;
+        }
+    }
+
+    private List<ArchiveFile> snapshot(boolean descending) {
+        synchronized (files) {
+            return new ArrayList<>(descending ? files.descendingMap().values() : files.values());
+        }
+    }
+
+    /**
+     * 解压一个归档文件并应用撤回记录
+     */
+    private List<ChatMessage> load(ArchiveFile archive) {
+        List<ChatMessage> messages;
+        synchronized (decoded) {
+            messages = decoded.get(archive.minId);
+        }
+        if (messages == null) {
+            messages = readMessages(archive);
+            synchronized (decoded) {
+                decoded.put(archive.minId, messages);
+                while (decoded.size() > cachedFiles) {
+                    decoded.remove(decoded.keySet().iterator().next());
+                }
+            }
+        }
+
+        return applyRecalls(messages);
+    }
+
+    private List<ChatMessage> applyRecalls(List<ChatMessage> messages) {
+        if (recalls.isEmpty()) {
+            return messages;
+        }
+        List<ChatMessage> result = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            LocalDateTime recalledAt = recalls.get(message.getId());
+            if (recalledAt != null && !Boolean.TRUE.equals(message.getRecalled())) {
+                ChatMessage recalled = new ChatMessage();
+                recalled.setId(message.getId());
+                recalled.setUserIp(message.getUserIp());
+                recalled.setUserName(message.getUserName());
+                recalled.setUniqueId(message.getUniqueId());
+                recalled.setTimestamp(message.getTimestamp());
+                recalled.setMessageType(message.getMessageType());
+                recalled.setFileId(message.getFileId());
+                recalled.setContent(RECALLED_CONTENT);
+                recalled.setRecalled(true);
+                recalled.setRecalledAt(recalledAt);
+                recalled.markNotNew();
+                message = recalled;
+            }
+            result.add(message);
+        }
+        return result;
+    }
+
+    private List<ChatMessage> readMessages(ArchiveFile archive) {
+        try (DataInputStream in = open(archive.file)) {
+            skipHeader(in);
+            List<ChatMessage> messages = new ArrayList<>(archive.count);
+            for (int i = 0; i < archive.count; i++) {
+                messages.add(readMessage(in));
+            }
+            return Collections.unmodifiableList(messages);
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取归档文件失败: " + archive.file.getName(), e);
+        }
+    }
+
+    private ArchiveFile readHeader(File file) throws IOException {
+        String[] range = file.getName().substring(0, 41).split("-");
+        ArchiveFile archive = new ArchiveFile(file, Long.parseLong(range[0]), Long.parseLong(range[1]));
+        try (DataInputStream in = open(file)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("不是有效的归档文件: " + file.getName());
+            }
+            archive.count = in.readInt();
+            int users = in.readInt();
+            for (int i = 0; i < users; i++) {
+                archive.activeByUser.put(readString(in), in.readLong());
+            }
+        }
+        return archive;
+    }
+
+    private void skipHeader(DataInputStream in) throws IOException {
+        in.readInt();
+        in.readInt();
+        int users = in.readInt();
+        for (int i = 0; i < users; i++) {
+            readString(in);
+            in.readLong();
+        }
+    }
+
+    private DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+    }
+
+    // ---------------------------------------------------------------- 编码
+
+    private static void writeMessage(DataOutputStream out, ChatMessage message) throws IOException {
+        out.writeLong(message.getId());
+        writeTime(out, message.getTimestamp());
+        out.writeLong(message.getFileId() != null ? message.getFileId() : -1L);
+        writeString(out, message.getMessageType().name());
+        writeString(out, message.getUserIp());
+        writeString(out, message.getUserName());
+        writeString(out, message.getUniqueId());
+        writeString(out, message.getContent());
+        boolean recalled = Boolean.TRUE.equals(message.getRecalled());
+        out.writeBoolean(recalled);
+        if (recalled) {
+            writeTime(out, message.getRecalledAt() != null ? message.getRecalledAt() : message.getTimestamp());
+        }
+    }
+
+    private static ChatMessage readMessage(DataInputStream in) throws IOException {
+        ChatMessage message = new ChatMessage();
+        message.setId(in.readLong());
+        message.setTimestamp(readTime(in));
+        long fileId = in.readLong();
+        message.setFileId(fileId >= 0 ? fileId : null);
+        message.setMessageType(ChatMessage.MessageType.valueOf(readString(in)));
+        message.setUserIp(readString(in));
+        message.setUserName(readString(in));
+        message.setUniqueId(readString(in));
+        message.setContent(readString(in));
+        boolean recalled = in.readBoolean();
+        message.setRecalled(recalled);
+        if (recalled) {
+            message.setRecalledAt(readTime(in));
+        }
+        message.markNotNew();
+        return message;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTime(DataOutputStream out, LocalDateTime time) throws IOException {
+        out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(time.getNano());
+    }
+
+    private static LocalDateTime readTime(DataInputStream in) throws IOException {
+        long seconds = in.readLong();
+        int nanos = in.readInt();
+        return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+
+    private static class ArchiveFile {
+        private final File file;
+        private final long minId;
+        private final long maxId;
+        private int count;
+        private final Map<String, Long> activeByUser = new HashMap<>();
+
+        ArchiveFile(File file, long minId, long maxId) {
+            this.file = file;
+            this.minId = minId;
+            this.maxId = maxId;
+        }
+    }
+}
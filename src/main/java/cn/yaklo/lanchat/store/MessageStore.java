@@ -0,0 +1,74 @@
+package cn.yaklo.lanchat.store;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 聊天消息的持久化存储
+ * 由配置lanchat.storage.type选择实现：h2（默认，JPA）或log（分段追加日志）
+ * 所有列表都只返回已写入的消息，尚未入库的消息由ChatService合并
+ */
+public interface MessageStore {
+
+    /**
+     * 写入一批消息：新消息追加，已存在的消息（如撤回）按新状态更新
+     * 要么全部成功，要么抛出异常，由调用方重试
+     */
+    void saveAll(List<ChatMessage> messages);
+
+    ChatMessage findById(long messageId);
+
+    /**
+     * 按ID批量读取（包含已撤回的），不存在的ID忽略，结果顺序不定
+     */
+    List<ChatMessage> findByIds(Collection<Long> messageIds);
+
+    /**
+     * 序号小于beforeId的未撤回消息，按序号倒序
+     */
+    List<ChatMessage> findActiveBefore(long beforeId, int limit);
+
+    /**
+     * 序号大于afterId的未撤回消息，按序号升序
+     */
+    List<ChatMessage> findActiveAfter(long afterId, int limit);
+
+    /**
+     * 时间早于timestamp的未撤回消息，按序号倒序
+     */
+    List<ChatMessage> findActiveBeforeTimestamp(LocalDateTime timestamp, int limit);
+
+    /**
+     * 最新的消息（包含已撤回的），按序号倒序
+     */
+    List<ChatMessage> findNewest(int limit);
+
+    /**
+     * 某个用户序号小于beforeId的消息（包含已撤回的），按序号倒序
+     */
+    List<ChatMessage> findByUserBefore(String userIp, long beforeId, int limit);
+
+    /**
+     * 按序号升序逐条遍历序号大于afterId的未撤回消息，用于导出，实现不能把全部结果放在内存中
+     */
+    void forEachActiveAfter(long afterId, Consumer<ChatMessage> consumer);
+
+    /**
+     * 最大的消息ID，没有消息时返回null
+     */
+    Long findMaxId();
+
+    long count();
+
+    long countActive();
+
+    /**
+     * 按用户统计未撤回的消息数（用户IP -> 条数）
+     */
+    Map<String, Long> countActiveByUser();
+}
@@ -0,0 +1,746 @@
+package cn.yaklo.lanchat.store;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.repository.ChatMessageRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * 基于分段追加日志的消息存储（lanchat.storage.type=log）
+ *
+ * 日志由固定大小、内存映射的段文件组成，文件名为段内第一个可能出现的消息ID（%020d.seg），只追加不修改。
+ * 记录格式：[int 长度][int CRC32][byte 类型][内容]，长度和CRC覆盖类型与内容；类型1为消息，类型2为撤回墓碑。
+ * 每个段每64条消息记录一个稀疏索引项（消息ID、时间、位置），查找时二分定位到块再顺序解码，倒序读取按块正读后反转。
+ * 启动时顺序扫描所有段重建索引、墓碑和计数，遇到长度为0或CRC不符的记录即视为日志末尾（崩溃时写了一半的记录被丢弃）。
+ * 日志为空且lanchat.storage.log.migrate=true时，从chat_messages表迁移已有消息。
+ */
+@Component
+@ConditionalOnProperty(name = "lanchat.storage.type", havingValue = "log")
+public class SegmentedLogMessageStore implements MessageStore {
+
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+
+    // 长度 + CRC
+    private static final int RECORD_HEADER = 8;
+
+    // 每隔多少条消息记录一个稀疏索引项
+    private static final int INDEX_INTERVAL = 64;
+
+    private static final int MIGRATION_PAGE_SIZE = 1000;
+
+    private static final int EXPORT_PAGE_SIZE = 500;
+
+    private static final String RECALLED_CONTENT = "[消息已被撤回]";
+
+    @Autowired
+    private ChatMessageRepository chatMessageRepository;
+
+    @Value("${lanchat.storage.log.dir:./data/msglog}")
+    private String logDir;
+
+    @Value("${lanchat.storage.log.segment-size:67108864}")
+    private int segmentSize;
+
+    @Value("${lanchat.storage.log.migrate:true}")
+    private boolean migrate;
+
+    // 段起始ID -> 段，最后一个为当前写入段
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    // 已撤回的消息ID -> 撤回时间
+    private final Map<Long, LocalDateTime> tombstones = new HashMap<>();
+
+    private long maxId = 0;
+    private long totalMessages = 0;
+    private long activeMessages = 0;
+    private final Map<String, Long> activeByUser = new HashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @PostConstruct
+    public void init() throws IOException {
+        File dir = new File(logDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建消息日志目录: " + dir.getAbsolutePath());
+        }
+
+        File[] files = dir.listFiles((d, name) -> name.matches("\\d{20}\\.seg"));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                Segment segment = openSegment(file, false);
+                recover(segment);
+                segments.put(segment.baseId, segment);
+            }
+        }
+
+        System.out.println("消息存储: 分段日志 " + dir.getAbsolutePath() + ", " + segments.size() + " 个段, "
+                + totalMessages + " 条消息, " + tombstones.size() + " 条撤回");
+
+        if (totalMessages == 0 && migrate) {
+            migrateFromDatabase();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    System.err.println("关闭日志段失败: " + segment.file.getName() + " - " + e.getMessage());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveAll(List<ChatMessage> messages) {
+        lock.writeLock().lock();
+        try {
+            Set<Segment> dirty = new LinkedHashSet<>();
+            for (ChatMessage message : messages) {
+                if (message.isNew()) {
+                    appendMessage(message, dirty);
+                }
+                // 日志不支持原地修改，唯一的更新（撤回）以墓碑记录追加
+                if (Boolean.TRUE.equals(message.getRecalled()) && !tombstones.containsKey(message.getId())) {
+                    appendTombstone(message, dirty);
+                }
+            }
+            for (Segment segment : dirty) {
+                segment.buffer.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (ChatMessage message : messages) {
+            message.markNotNew();
+        }
+    }
+
+    @Override
+    public ChatMessage findById(long messageId) {
+        lock.readLock().lock();
+        try {
+            return locate(messageId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> findByIds(Collection<Long> messageIds) {
+        lock.readLock().lock();
+        try {
+            List<ChatMessage> messages = new ArrayList<>(messageIds.size());
+            for (Long messageId : messageIds) {
+                ChatMessage message = locate(messageId);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+            return messages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> findActiveBefore(long beforeId, int limit) {
+        lock.readLock().lock();
+        try {
+            return scanBackward(beforeId, this::isActive, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> findActiveAfter(long afterId, int limit) {
+        lock.readLock().lock();
+        try {
+            return scanForward(afterId, this::isActive, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> findActiveBeforeTimestamp(LocalDateTime timestamp, int limit) {
+        lock.readLock().lock();
+        try {
+            return scanBackward(idBoundFor(timestamp),
+                    message -> isActive(message) && message.getTimestamp().isBefore(timestamp), limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> findNewest(int limit) {
+        lock.readLock().lock();
+        try {
+            return scanBackward(Long.MAX_VALUE, message -> true, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> findByUserBefore(String userIp, long beforeId, int limit) {
+        lock.readLock().lock();
+        try {
+            return scanBackward(beforeId, message -> userIp.equals(message.getUserIp()), limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEachActiveAfter(long afterId, Consumer<ChatMessage> consumer) {
+        // 分页读取，每页释放读锁，导出过程中不阻塞写入
+        long lastId = afterId;
+        while (true) {
+            List<ChatMessage> page = findActiveAfter(lastId, EXPORT_PAGE_SIZE);
+            page.forEach(consumer);
+            if (page.size() < EXPORT_PAGE_SIZE) {
+                return;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    @Override
+    public Long findMaxId() {
+        lock.readLock().lock();
+        try {
+            return totalMessages > 0 ? maxId : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long count() {
+        lock.readLock().lock();
+        try {
+            return totalMessages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long countActive() {
+        lock.readLock().lock();
+        try {
+            return activeMessages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Long> countActiveByUser() {
+        lock.readLock().lock();
+        try {
+            return new HashMap<>(activeByUser);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把chat_messages表中的消息按ID顺序分页写入日志，已撤回的消息同时写入墓碑
+     */
+    private void migrateFromDatabase() {
+        long lastId = 0;
+        long migrated = 0;
+        lock.writeLock().lock();
+        try {
+            Set<Segment> dirty = new LinkedHashSet<>();
+            while (true) {
+                List<ChatMessage> page = chatMessageRepository.findByIdGreaterThanOrderByIdAsc(
+                        lastId, PageRequest.of(0, MIGRATION_PAGE_SIZE));
+                if (page.isEmpty()) {
+                    break;
+                }
+                for (ChatMessage message : page) {
+                    appendMessage(message, dirty);
+                    if (Boolean.TRUE.equals(message.getRecalled())) {
+                        appendTombstone(message, dirty);
+                    }
+                }
+                for (Segment segment : dirty) {
+                    segment.buffer.force();
+                }
+                dirty.clear();
+                lastId = page.get(page.size() - 1).getId();
+                migrated += page.size();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (migrated > 0) {
+            System.out.println("已从数据库迁移 " + migrated + " 条消息到分段日志");
+        }
+    }
+
+    // ---------------------------------------------------------------- 写入
+
+    private void appendMessage(ChatMessage message, Set<Segment> dirty) {
+        long id = message.getId();
+        if (totalMessages > 0 && id <= maxId) {
+            if (locate(id) != null) {
+                // 批量写入失败后逐条重试时，已写入的消息直接跳过
+                return;
+            }
+            throw new IllegalArgumentException("消息序号 " + id + " 早于日志末尾 " + maxId);
+        }
+
+        byte[] record = encode(TYPE_MESSAGE, out -> {
+            out.writeLong(id);
+            writeTime(out, message.getTimestamp());
+            out.writeLong(message.getFileId() != null ? message.getFileId() : -1L);
+            writeString(out, message.getMessageType().name());
+            writeString(out, message.getUserIp());
+            writeString(out, message.getUserName());
+            writeString(out, message.getUniqueId());
+            writeString(out, message.getContent());
+        });
+        Segment segment = write(record, dirty);
+        segment.index(id, toMillis(message.getTimestamp()), segment.writePosition - record.length);
+
+        maxId = id;
+        totalMessages++;
+        activeMessages++;
+        activeByUser.merge(message.getUserIp(), 1L, Long::sum);
+    }
+
+    private void appendTombstone(ChatMessage message, Set<Segment> dirty) {
+        LocalDateTime recalledAt = message.getRecalledAt() != null ? message.getRecalledAt() : LocalDateTime.now();
+        byte[] record = encode(TYPE_TOMBSTONE, out -> {
+            out.writeLong(message.getId());
+            writeTime(out, recalledAt);
+            writeString(out, message.getUserIp());
+        });
+        write(record, dirty);
+        applyTombstone(message.getId(), recalledAt, message.getUserIp());
+    }
+
+    /**
+     * 把记录追加到当前段，空间不足时新建一个段
+     */
+    private Segment write(byte[] record, Set<Segment> dirty) {
+        Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (segment == null || segment.writePosition + record.length > segment.buffer.capacity()) {
+            long baseId = totalMessages > 0 ? maxId + 1 : 1;
+            File file = new File(logDir, String.format("%020d.seg", baseId));
+            try {
+                segment = openSegment(file, true);
+            } catch (IOException e) {
+                throw new UncheckedIOException("创建日志段失败: " + file.getName(), e);
+            }
+            segments.put(baseId, segment);
+        }
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(segment.writePosition);
+        buffer.put(record);
+        segment.writePosition += record.length;
+        dirty.add(segment);
+        return segment;
+    }
+
+    private byte[] encode(byte type, RecordWriter writer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(type);
+            writer.write(out);
+            out.flush();
+
+            byte[] record = bytes.toByteArray();
+            if (record.length > segmentSize) {
+                throw new IllegalArgumentException("记录大小 " + record.length + " 超过日志段大小 " + segmentSize);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record, RECORD_HEADER, record.length - RECORD_HEADER);
+            ByteBuffer.wrap(record)
+                    .putInt(record.length - RECORD_HEADER)
+                    .putInt((int) crc.getValue());
+            return record;
+        } catch (IOException e) {
+            // 写入内存流不会失败
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------- 恢复
+
+    /**
+     * 顺序扫描一个段，校验每条记录并重建稀疏索引、墓碑和计数
+     */
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int capacity = buffer.capacity();
+        int position = 0;
+        CRC32 crc = new CRC32();
+
+        while (position + RECORD_HEADER <= capacity) {
+            buffer.position(position);
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || position + RECORD_HEADER + length > capacity) {
+                break;
+            }
+            byte[] body = new byte[length];
+            buffer.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(body, 1, length - 1);
+            if (body[0] == TYPE_MESSAGE) {
+                long id = record.getLong();
+                LocalDateTime timestamp = readTime(record);
+                record.getLong();
+                readString(record);
+                String userIp = readString(record);
+                segment.index(id, toMillis(timestamp), position);
+                maxId = Math.max(maxId, id);
+                totalMessages++;
+                activeMessages++;
+                activeByUser.merge(userIp, 1L, Long::sum);
+            } else if (body[0] == TYPE_TOMBSTONE) {
+                long id = record.getLong();
+                LocalDateTime recalledAt = readTime(record);
+                applyTombstone(id, recalledAt, readString(record));
+            }
+            position += RECORD_HEADER + length;
+        }
+
+        segment.writePosition = position;
+        if (position + 4 <= capacity && segment.buffer.getInt(position) != 0) {
+            // 末尾是写了一半或损坏的记录，清零后从这里继续追加
+            System.err.println("日志段 " + segment.file.getName() + " 在位置 " + position + " 处截断");
+            ByteBuffer tail = segment.buffer.duplicate();
+            tail.position(position);
+            while (tail.hasRemaining()) {
+                tail.put((byte) 0);
+            }
+            segment.buffer.force();
+        }
+    }
+
+    private void applyTombstone(long id, LocalDateTime recalledAt, String userIp) {
+        if (tombstones.put(id, recalledAt) == null) {
+            activeMessages--;
+            activeByUser.merge(userIp, -1L, Long::sum);
+        }
+    }
+
+    // ---------------------------------------------------------------- 读取
+
+    private ChatMessage locate(long messageId) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(messageId);
+        if (entry == null) {
+            return null;
+        }
+        Segment segment = entry.getValue();
+        int block = segment.floorBlock(messageId);
+        if (block < 0) {
+            return null;
+        }
+        for (ChatMessage message : readBlock(segment, block)) {
+            if (message.getId() == messageId) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 从beforeId（不含）向前逐块读取，块内反转后按序号倒序返回满足条件的消息
+     */
+    private List<ChatMessage> scanBackward(long beforeId, Predicate<ChatMessage> filter, int limit) {
+        List<ChatMessage> result = new ArrayList<>(Math.min(limit, INDEX_INTERVAL));
+        for (Segment segment : segments.headMap(beforeId, false).descendingMap().values()) {
+            for (int block = segment.floorBlock(beforeId - 1); block >= 0; block--) {
+                List<ChatMessage> messages = readBlock(segment, block);
+                for (int i = messages.size() - 1; i >= 0; i--) {
+                    ChatMessage message = messages.get(i);
+                    if (message.getId() < beforeId && filter.test(message)) {
+                        result.add(message);
+                        if (result.size() >= limit) {
+                            return result;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 从afterId（不含）向后顺序读取，按序号升序返回满足条件的消息
+     */
+    private List<ChatMessage> scanForward(long afterId, Predicate<ChatMessage> filter, int limit) {
+        List<ChatMessage> result = new ArrayList<>(Math.min(limit, INDEX_INTERVAL));
+        Long startKey = segments.floorKey(afterId + 1);
+        Map<Long, Segment> tail = startKey != null ? segments.tailMap(startKey, true) : segments;
+        for (Segment segment : tail.values()) {
+            for (int block = Math.max(segment.floorBlock(afterId + 1), 0); block < segment.indexSize; block++) {
+                for (ChatMessage message : readBlock(segment, block)) {
+                    if (message.getId() > afterId && filter.test(message)) {
+                        result.add(message);
+                        if (result.size() >= limit) {
+                            return result;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 根据稀疏索引中的时间估算时间早于timestamp的消息的序号上界（消息时间随序号单调递增）
+     */
+    private long idBoundFor(LocalDateTime timestamp) {
+        long millis = toMillis(timestamp);
+        Long newerBase = null;
+        for (Segment segment : segments.descendingMap().values()) {
+            int block = segment.floorBlockByTime(millis);
+            if (block >= 0) {
+                for (; block < segment.indexSize; block++) {
+                    for (ChatMessage message : readBlock(segment, block)) {
+                        if (!message.getTimestamp().isBefore(timestamp)) {
+                            return message.getId();
+                        }
+                    }
+                }
+                return newerBase != null ? newerBase : Long.MAX_VALUE;
+            }
+            newerBase = segment.baseId;
+        }
+        return newerBase != null ? newerBase : Long.MAX_VALUE;
+    }
+
+    private List<ChatMessage> readBlock(Segment segment, int block) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = segment.positions[block];
+        int end = block + 1 < segment.indexSize ? segment.positions[block + 1] : segment.writePosition;
+
+        // CRC已在启动恢复时校验，读取时不再重复计算
+        List<ChatMessage> messages = new ArrayList<>(INDEX_INTERVAL);
+        while (position < end) {
+            buffer.position(position);
+            int length = buffer.getInt();
+            buffer.getInt();
+            if (buffer.get() == TYPE_MESSAGE) {
+                messages.add(readMessage(buffer));
+            }
+            position += RECORD_HEADER + length;
+        }
+        return messages;
+    }
+
+    private ChatMessage readMessage(ByteBuffer buffer) {
+        ChatMessage message = new ChatMessage();
+        message.setId(buffer.getLong());
+        message.setTimestamp(readTime(buffer));
+        long fileId = buffer.getLong();
+        message.setFileId(fileId >= 0 ? fileId : null);
+        message.setMessageType(ChatMessage.MessageType.valueOf(readString(buffer)));
+        message.setUserIp(readString(buffer));
+        message.setUserName(readString(buffer));
+        message.setUniqueId(readString(buffer));
+        message.setContent(readString(buffer));
+
+        LocalDateTime recalledAt = tombstones.get(message.getId());
+        if (recalledAt != null) {
+            message.setRecalled(true);
+            message.setRecalledAt(recalledAt);
+            message.setContent(RECALLED_CONTENT);
+        } else {
+            message.setRecalled(false);
+        }
+        message.markNotNew();
+        return message;
+    }
+
+    private boolean isActive(ChatMessage message) {
+        return !Boolean.TRUE.equals(message.getRecalled());
+    }
+
+    // ---------------------------------------------------------------- 编码
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTime(DataOutputStream out, LocalDateTime time) throws IOException {
+        out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(time.getNano());
+    }
+
+    private static LocalDateTime readTime(ByteBuffer buffer) {
+        long seconds = buffer.getLong();
+        int nanos = buffer.getInt();
+        return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private Segment openSegment(File file, boolean create) throws IOException {
+        String name = file.getName();
+        long baseId = Long.parseLong(name.substring(0, name.indexOf('.')));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (create) {
+            raf.setLength(segmentSize);
+        }
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        return new Segment(file, baseId, channel, buffer);
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * 一个日志段及其稀疏索引，由外层的读写锁保护
+     */
+    private static class Segment {
+        private final File file;
+        private final long baseId;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition = 0;
+
+        // 稀疏索引：第i项是第i个块中第一条消息的ID、时间（毫秒）和位置
+        private long[] ids = new long[16];
+        private long[] times = new long[16];
+        private int[] positions = new int[16];
+        private int indexSize = 0;
+        private int messageCount = 0;
+
+        Segment(File file, long baseId, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseId = baseId;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        void index(long id, long time, int position) {
+            if (messageCount++ % INDEX_INTERVAL != 0) {
+                return;
+            }
+            if (indexSize == ids.length) {
+                ids = Arrays.copyOf(ids, indexSize * 2);
+                times = Arrays.copyOf(times, indexSize * 2);
+                positions = Arrays.copyOf(positions, indexSize * 2);
+            }
+            ids[indexSize] = id;
+            times[indexSize] = time;
+            positions[indexSize] = position;
+            indexSize++;
+        }
+
+        /**
+         * 最后一个起始ID不大于id的块，没有时返回-1
+         */
+        int floorBlock(long id) {
+            int low = 0;
+            int high = indexSize - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid] <= id) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        /**
+         * 最后一个起始时间早于time的块，没有时返回-1
+         */
+        int floorBlockByTime(long time) {
+            int low = 0;
+            int high = indexSize - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+    }
+}
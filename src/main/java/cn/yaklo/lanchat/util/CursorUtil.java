@@ -0,0 +1,52 @@
+package cn.yaklo.lanchat.util;
+
+import cn.yaklo.lanchat.dto.ChatMessageDto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+public class CursorUtil {
+
+    // 游标格式的版本前缀，以后改变分页键时旧游标可以被识别出来
+    private static final String PREFIX = "m1:";
+
+    /**
+     * 把分页位置（下一页从该消息ID之前开始）编码为不透明的游标字符串
+     */
+    public static String encode(long messageId) {
+        byte[] raw = (PREFIX + messageId).getBytes(StandardCharsets.US_ASCII);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+
+    /**
+     * 按序号倒序的一页消息对应的下一页游标，本页不满说明没有更早的消息，返回null
+     */
+    public static String nextCursor(List<ChatMessageDto> page, int pageSize) {
+        if (page.isEmpty() || page.size() < pageSize) {
+            return null;
+        }
+        return encode(page.get(page.size() - 1).getId());
+    }
+
+    /**
+     * 解析游标，返回消息ID
+     * @throws IllegalArgumentException 游标格式不正确
+     */
+    public static long decode(String cursor) {
+        String raw;
+        try {
+            raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的分页游标");
+        }
+        if (!raw.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("无效的分页游标");
+        }
+        try {
+            return Long.parseLong(raw.substring(PREFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("无效的分页游标");
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package cn.yaklo.lanchat.util;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HTTP Range和If-Range请求头的处理（RFC 7233），只支持bytes单位
+ */
+public class HttpRangeUtil {
+
+    // 一次请求最多的区间数，超过的视为滥用，按完整内容返回
+    public static final int MAX_RANGES = 16;
+
+    /**
+     * 解析Range头，区间已按文件长度截断
+     * @return 请求头缺失、格式不正确或区间过多时返回null（应返回完整内容）；没有可满足的区间时返回空列表（应返回416）
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if (first.isEmpty()) {
+                    // 后缀区间：最后N个字节
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                    if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < length && start <= end) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+        return ranges.isEmpty() ? Collections.emptyList() : coalesce(ranges);
+    }
+
+    /**
+     * If-Range与当前ETag（强比较）或Last-Modified一致时才按Range返回部分内容，否则返回完整内容
+     */
+    public static boolean isRangeApplicable(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            return ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+                    == lastModified;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 合并重叠或相邻的区间，避免客户端用大量重叠区间放大响应
+     */
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort((a, b) -> Long.compare(a.start, b.start));
+        boolean overlapping = false;
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).start <= sorted.get(i - 1).end + 1) {
+                overlapping = true;
+                break;
+            }
+        }
+        if (!overlapping) {
+            // 不重叠时保持客户端请求的顺序
+            return ranges;
+        }
+
+        List<ByteRange> merged = new ArrayList<>(sorted.size());
+        ByteRange current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); i++) {
+            ByteRange next = sorted.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    public static class ByteRange {
+        // 起止位置都包含在区间内
+        public final long start;
+        public final long end;
+
+        public ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length() {
+            return end - start + 1;
+        }
+
+        public String contentRange(long total) {
+            return "bytes " + start + "-" + end + "/" + total;
+        }
+    }
+}
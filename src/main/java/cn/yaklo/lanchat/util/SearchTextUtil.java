@@ -0,0 +1,200 @@
+package cn.yaklo.lanchat.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 全文检索的分词与高亮
+ * 中日韩文字没有空格分词，按连续字符生成单字和二元组（bigram）；其他语言按字母数字连续串作为单词，统一转小写
+ */
+public class SearchTextUtil {
+
+    // 单词最大长度，更长的（如链接）只索引前缀
+    public static final int MAX_WORD_LENGTH = 32;
+
+    // 高亮片段的最大长度，较长的消息只保留第一个命中位置附近的内容
+    private static final int SNIPPET_LENGTH = 160;
+
+    /**
+     * 索引用的词项：中日韩单字和二元组、单词
+     */
+    public static Set<String> indexTokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+        String lower = lowerCase(text);
+        int i = 0;
+        while (i < lower.length()) {
+            char c = lower.charAt(i);
+            if (isCjk(c)) {
+                tokens.add(String.valueOf(c));
+                if (i + 1 < lower.length() && isCjk(lower.charAt(i + 1))) {
+                    tokens.add(lower.substring(i, i + 2));
+                }
+                i++;
+            } else if (Character.isLetterOrDigit(c)) {
+                int end = wordEnd(lower, i);
+                tokens.add(lower.substring(i, Math.min(end, i + MAX_WORD_LENGTH)));
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * 查询词拆分后的检索条件
+     * 中日韩文字串按二元组拆分（单个字用单字），单词用作前缀，结果还需用containsTerm校验
+     */
+    public static List<QueryToken> queryTokens(String term) {
+        List<QueryToken> tokens = new ArrayList<>();
+        String lower = lowerCase(term);
+        int i = 0;
+        while (i < lower.length()) {
+            char c = lower.charAt(i);
+            if (isCjk(c)) {
+                int end = i;
+                while (end < lower.length() && isCjk(lower.charAt(end))) {
+                    end++;
+                }
+                if (end - i == 1) {
+                    tokens.add(new QueryToken(lower.substring(i, end), false));
+                } else {
+                    for (int j = i; j + 1 < end; j++) {
+                        tokens.add(new QueryToken(lower.substring(j, j + 2), false));
+                    }
+                }
+                i = end;
+            } else if (Character.isLetterOrDigit(c)) {
+                int end = wordEnd(lower, i);
+                tokens.add(new QueryToken(lower.substring(i, Math.min(end, i + MAX_WORD_LENGTH)), true));
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * 把查询按空白拆成多个词，全部命中才算匹配
+     */
+    public static List<String> splitTerms(String query) {
+        List<String> terms = new ArrayList<>();
+        for (String term : query.trim().split("\\s+")) {
+            if (!term.isEmpty() && !queryTokens(term).isEmpty()) {
+                terms.add(lowerCase(term));
+            }
+        }
+        return terms;
+    }
+
+    public static boolean containsTerm(String text, String term) {
+        return text != null && lowerCase(text).contains(term);
+    }
+
+    /**
+     * 转义HTML后用<mark>标出所有查询词，长消息截取第一个命中附近的片段
+     */
+    public static String highlight(String text, List<String> terms) {
+        if (text == null) {
+            return "";
+        }
+        String lower = lowerCase(text);
+        boolean[] marked = new boolean[text.length()];
+        int first = -1;
+        for (String term : terms) {
+            int from = 0;
+            int index;
+            while ((index = lower.indexOf(term, from)) >= 0) {
+                for (int k = index; k < index + term.length(); k++) {
+                    marked[k] = true;
+                }
+                if (first < 0 || index < first) {
+                    first = index;
+                }
+                from = index + term.length();
+            }
+        }
+
+        int start = 0;
+        int end = text.length();
+        if (end > SNIPPET_LENGTH) {
+            start = Math.max(0, Math.max(first, 0) - SNIPPET_LENGTH / 4);
+            end = Math.min(text.length(), start + SNIPPET_LENGTH);
+        }
+
+        StringBuilder html = new StringBuilder(end - start + 32);
+        if (start > 0) {
+            html.append("…");
+        }
+        boolean open = false;
+        for (int i = start; i < end; i++) {
+            if (marked[i] != open) {
+                html.append(open ? "</mark>" : "<mark>");
+                open = marked[i];
+            }
+            appendEscaped(html, text.charAt(i));
+        }
+        if (open) {
+            html.append("</mark>");
+        }
+        if (end < text.length()) {
+            html.append("…");
+        }
+        return html.toString();
+    }
+
+    /**
+     * 逐字符转小写，保证与原文下标一一对应
+     */
+    private static String lowerCase(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static int wordEnd(String text, int start) {
+        int end = start;
+        while (end < text.length() && Character.isLetterOrDigit(text.charAt(end)) && !isCjk(text.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean isCjk(char c) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(c);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+
+    private static void appendEscaped(StringBuilder html, char c) {
+        switch (c) {
+            case '&': html.append("&amp;"); break;
+            case '<': html.append("&lt;"); break;
+            case '>': html.append("&gt;"); break;
+            case '"': html.append("&quot;"); break;
+            case '\'': html.append("&#39;"); break;
+            default: html.append(c);
+        }
+    }
+
+    public static class QueryToken {
+        public final String text;
+        // 是否按前缀匹配词典中的单词
+        public final boolean prefix;
+
+        public QueryToken(String text, boolean prefix) {
+            this.text = text;
+            this.prefix = prefix;
+        }
+    }
+}
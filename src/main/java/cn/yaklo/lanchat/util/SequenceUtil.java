@@ -0,0 +1,35 @@
+package cn.yaklo.lanchat.util;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class SequenceUtil {
+
+    /**
+     * 确保H2序列存在且下一个值大于floor
+     * 旧库中的表由自增列生成ID，切换到序列后需要把序列推到现有最大ID之后
+     */
+    public static void ensureSequence(JdbcTemplate jdbcTemplate, String name, long floor, int increment) {
+        jdbcTemplate.execute("CREATE SEQUENCE IF NOT EXISTS " + name
+                + " START WITH " + (floor + 1) + " INCREMENT BY " + increment);
+        jdbcTemplate.execute("ALTER SEQUENCE " + name + " INCREMENT BY " + increment);
+
+        Long next = jdbcTemplate.queryForObject(
+                "SELECT BASE_VALUE FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = ?",
+                Long.class, name.toUpperCase());
+        if (next == null || next <= floor) {
+            jdbcTemplate.execute("ALTER SEQUENCE " + name + " RESTART WITH " + (floor + 1));
+            System.out.println("序列 " + name + " 已调整到 " + (floor + 1));
+        }
+    }
+
+    /**
+     * 取序列的下一个值
+     */
+    public static long nextValue(JdbcTemplate jdbcTemplate, String name) {
+        Long value = jdbcTemplate.queryForObject("SELECT NEXT VALUE FOR " + name, Long.class);
+        if (value == null) {
+            throw new IllegalStateException("无法获取序列值: " + name);
+        }
+        return value;
+    }
+}
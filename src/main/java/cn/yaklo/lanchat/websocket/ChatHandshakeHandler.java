@@ -0,0 +1,58 @@
+package cn.yaklo.lanchat.websocket;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * /ws/chat 的握手处理
+ * 协商线路协议：客户端按偏好顺序请求子协议，未请求子协议的旧客户端使用JSON；
+ * 客户端选择应用层压缩（compress=gzip）时不再协商permessage-deflate，避免小帧也被压缩以及重复压缩
+ */
+@Component
+public class ChatHandshakeHandler extends DefaultHandshakeHandler {
+
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+    @Value("${lanchat.ws.compression.enabled:true}")
+    private boolean compressionEnabled;
+
+    public ChatHandshakeHandler() {
+        setSupportedProtocols(
+                WireProtocol.CBOR.getSubProtocol(),
+                WireProtocol.JSON.getSubProtocol());
+    }
+
+    /**
+     * 握手请求是否选择了应用层gzip压缩
+     */
+    public boolean isCompressionRequested(ServerHttpRequest request) {
+        String compress = UriComponentsBuilder.fromUri(request.getURI()).build()
+                .getQueryParams().getFirst("compress");
+        return compressionEnabled && "gzip".equalsIgnoreCase(compress);
+    }
+
+    @Override
+    protected List<WebSocketExtension> filterRequestedExtensions(ServerHttpRequest request,
+            List<WebSocketExtension> requestedExtensions, List<WebSocketExtension> supportedExtensions) {
+        List<WebSocketExtension> extensions = super.filterRequestedExtensions(request, requestedExtensions,
+                supportedExtensions);
+        if (!isCompressionRequested(request)) {
+            return extensions;
+        }
+
+        List<WebSocketExtension> result = new ArrayList<>(extensions.size());
+        for (WebSocketExtension extension : extensions) {
+            if (!PERMESSAGE_DEFLATE.equalsIgnoreCase(extension.getName())) {
+                result.add(extension);
+            }
+        }
+        return result;
+    }
+}
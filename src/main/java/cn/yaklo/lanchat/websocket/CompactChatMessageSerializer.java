@@ -0,0 +1,62 @@
+package cn.yaklo.lanchat.websocket;
+
+import cn.yaklo.lanchat.dto.ChatMessageDto;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * 二进制协议下聊天消息的紧凑布局：按固定位置写成数组，不重复字段名
+ * [id, userIp, userName, content, timestamp(毫秒), messageType, recalled, recalledAt(毫秒), fileId, fileName, fileSize,
+ *  thumbWidth, thumbHeight]
+ * uniqueId与userIp相同不再发送，末尾为null的字段省略
+ */
+public class CompactChatMessageSerializer extends StdSerializer<ChatMessageDto> {
+
+    private static final long serialVersionUID = 1L;
+
+    public CompactChatMessageSerializer() {
+        super(ChatMessageDto.class);
+    }
+
+    @Override
+    public void serialize(ChatMessageDto message, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        Object[] fields = {
+                message.getId(),
+                message.getUserIp(),
+                message.getUserName(),
+                message.getContent(),
+                message.getTimestampMillis(),
+                message.getMessageType(),
+                message.getRecalled(),
+                message.getRecalledAtMillis(),
+                message.getFileId(),
+                message.getFileName(),
+                message.getFileSize(),
+                message.getThumbWidth(),
+                message.getThumbHeight()
+        };
+
+        int length = fields.length;
+        while (length > 0 && fields[length - 1] == null) {
+            length--;
+        }
+
+        gen.writeStartArray(message, length);
+        for (int i = 0; i < length; i++) {
+            Object field = fields[i];
+            if (field == null) {
+                gen.writeNull();
+            } else if (field instanceof Number) {
+                gen.writeNumber(((Number) field).longValue());
+            } else if (field instanceof Boolean) {
+                gen.writeBoolean((Boolean) field);
+            } else {
+                gen.writeString(field.toString());
+            }
+        }
+        gen.writeEndArray();
+    }
+}
@@ -0,0 +1,90 @@
+package cn.yaklo.lanchat.websocket;
+
+import cn.yaklo.lanchat.dto.ChatMessageDto;
+import cn.yaklo.lanchat.service.CompressionStats;
+import cn.yaklo.lanchat.util.GzipUtil;
+import cn.yaklo.lanchat.websocket.command.ChatCommand;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+
+/**
+ * 按会话协商的线路协议编解码WebSocket帧
+ */
+@Component
+public class FrameCodec {
+
+    @Autowired
+    private CompressionStats compressionStats;
+
+    // 达到该大小的帧才压缩，小帧压缩收益低于开销
+    @Value("${lanchat.ws.compression.min-size:1024}")
+    private int compressionMinSize;
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory())
+            .registerModule(new SimpleModule().addSerializer(ChatMessageDto.class, new CompactChatMessageSerializer()));
+
+    // 命令解析器线程安全，预先创建避免每帧查找反序列化器
+    private final ObjectReader jsonCommandReader = jsonMapper.readerFor(ChatCommand.class);
+    private final ObjectReader cborCommandReader = cborMapper.readerFor(ChatCommand.class);
+
+    public WireProtocol protocolOf(WebSocketSession session) {
+        return WireProtocol.fromSubProtocol(session.getAcceptedProtocol());
+    }
+
+    public boolean compressionOf(WebSocketSession session) {
+        return Boolean.TRUE.equals(session.getAttributes().get("compression"));
+    }
+
+    /**
+     * 编码帧；开启压缩且超过阈值时发送gzip二进制帧，客户端通过gzip魔数(1f 8b)识别
+     */
+    public WebSocketMessage<?> encode(Object frame, WireProtocol protocol, boolean compression) throws IOException {
+        byte[] bytes = protocol == WireProtocol.CBOR
+                ? cborMapper.writeValueAsBytes(frame)
+                : jsonMapper.writeValueAsBytes(frame);
+
+        if (compression) {
+            if (bytes.length >= compressionMinSize) {
+                byte[] compressed = GzipUtil.gzip(bytes);
+                if (compressed.length < bytes.length) {
+                    compressionStats.recordCompressed("ws", bytes.length, compressed.length);
+                    return new BinaryMessage(compressed);
+                }
+            }
+            compressionStats.recordSkipped("ws", bytes.length);
+        }
+
+        if (protocol == WireProtocol.CBOR) {
+            return new BinaryMessage(bytes);
+        }
+        return new TextMessage(bytes);
+    }
+
+    /**
+     * 解析客户端发来的JSON命令帧，type字段决定绑定的命令类型
+     */
+    public ChatCommand decodeCommand(TextMessage message) throws IOException {
+        return jsonCommandReader.readValue(message.getPayload());
+    }
+
+    /**
+     * 解析客户端发来的二进制（CBOR）命令帧，命令格式与JSON相同
+     */
+    public ChatCommand decodeCommand(BinaryMessage message) throws IOException {
+        byte[] bytes = new byte[message.getPayloadLength()];
+        message.getPayload().duplicate().get(bytes);
+        return cborCommandReader.readValue(bytes);
+    }
+}
@@ -0,0 +1,15 @@
+package cn.yaklo.lanchat.websocket;
+
+/**
+ * 会话发送队列溢出时的处理策略
+ */
+public enum OverflowPolicy {
+    /**
+     * 丢弃队列中最旧的消息，为新消息腾出位置
+     */
+    DROP_OLDEST,
+    /**
+     * 断开跟不上的慢客户端，客户端会自动重连并重新同步
+     */
+    DISCONNECT
+}
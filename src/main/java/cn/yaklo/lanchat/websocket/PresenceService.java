@@ -0,0 +1,190 @@
+package cn.yaklo.lanchat.websocket;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在线用户花名册
+ * 连接/断开只标记变化，由定时任务合并后每个周期最多广播一次增量，新连接只收到一次完整快照
+ */
+@Component
+public class PresenceService {
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Value("${lanchat.presence.tick-interval:1000}")
+    private long tickInterval;
+
+    // 会话ID -> 会话成员信息
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+
+    // 最近一次已广播的花名册（IP -> 条目），由this锁保护
+    private Map<String, RosterEntry> published = new LinkedHashMap<>();
+    private long version = 0;
+
+    private volatile boolean dirty = false;
+    private final AtomicLong memberSequence = new AtomicLong();
+
+    private ScheduledExecutorService ticker;
+
+    @PostConstruct
+    public void init() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("presence-");
+        threadFactory.setDaemon(true);
+        ticker = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        ticker.scheduleWithFixedDelay(this::tick, tickInterval, tickInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    public void join(WebSocketSession session, String ip, String name) {
+        members.put(session.getId(), new Member(ip, name, nextMemberSequence()));
+        dirty = true;
+    }
+
+    public void leave(WebSocketSession session) {
+        if (members.remove(session.getId()) != null) {
+            dirty = true;
+        }
+    }
+
+    public void rename(WebSocketSession session, String name) {
+        Member member = members.get(session.getId());
+        if (member != null) {
+            members.put(session.getId(), new Member(member.ip, name, nextMemberSequence()));
+            dirty = true;
+        }
+    }
+
+    /**
+     * 向单个会话发送当前已发布的花名册快照
+     * 与广播增量在同一把锁下执行，保证快照版本与后续增量首尾相接
+     */
+    public synchronized void sendSnapshot(WebSocketSession session) throws Exception {
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("type", "presenceSnapshot");
+        snapshot.put("version", version);
+        snapshot.put("users", new ArrayList<>(published.values()));
+        snapshot.put("count", countTabs(published));
+
+        sessionRegistry.send(session, snapshot);
+    }
+
+    private long nextMemberSequence() {
+        return memberSequence.incrementAndGet();
+    }
+
+    private void tick() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            publishDiff();
+        } catch (Exception e) {
+            System.err.println("广播在线用户变化失败: " + e.getMessage());
+        }
+    }
+
+    private synchronized void publishDiff() throws Exception {
+        dirty = false;
+        Map<String, RosterEntry> current = buildRoster();
+
+        List<RosterEntry> joined = new ArrayList<>();
+        List<RosterEntry> updated = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+
+        for (RosterEntry entry : current.values()) {
+            RosterEntry previous = published.get(entry.getIp());
+            if (previous == null) {
+                joined.add(entry);
+            } else if (!previous.equals(entry)) {
+                updated.add(entry);
+            }
+        }
+        for (String ip : published.keySet()) {
+            if (!current.containsKey(ip)) {
+                left.add(ip);
+            }
+        }
+
+        published = current;
+
+        // 周期内的上线又下线相互抵消，没有实际变化时不广播
+        if (joined.isEmpty() && updated.isEmpty() && left.isEmpty()) {
+            return;
+        }
+        version++;
+
+        Map<String, Object> diff = new HashMap<>();
+        diff.put("type", "presenceDiff");
+        diff.put("version", version);
+        diff.put("joined", joined);
+        diff.put("updated", updated);
+        diff.put("left", left);
+        diff.put("count", countTabs(current));
+
+        sessionRegistry.broadcastControl(diff);
+    }
+
+    /**
+     * 按IP聚合会话，显示名取该IP最近一次加入或改名的会话
+     */
+    private Map<String, RosterEntry> buildRoster() {
+        Map<String, Integer> tabs = new HashMap<>();
+        Map<String, Member> latest = new HashMap<>();
+        for (Member member : members.values()) {
+            tabs.merge(member.ip, 1, Integer::sum);
+            Member existing = latest.get(member.ip);
+            if (existing == null || existing.sequence < member.sequence) {
+                latest.put(member.ip, member);
+            }
+        }
+
+        Map<String, RosterEntry> roster = new LinkedHashMap<>();
+        for (Map.Entry<String, Member> entry : latest.entrySet()) {
+            String ip = entry.getKey();
+            roster.put(ip, new RosterEntry(ip, entry.getValue().name, tabs.get(ip)));
+        }
+        return roster;
+    }
+
+    private int countTabs(Map<String, RosterEntry> roster) {
+        int count = 0;
+        for (RosterEntry entry : roster.values()) {
+            count += entry.getTabs();
+        }
+        return count;
+    }
+
+    private static class Member {
+        private final String ip;
+        private final String name;
+        private final long sequence;
+
+        private Member(String ip, String name, long sequence) {
+            this.ip = ip;
+            this.name = name;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package cn.yaklo.lanchat.websocket;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 在线花名册中的一个用户（按IP聚合）
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RosterEntry {
+    private String ip;
+    private String name;
+    private int tabs;
+}
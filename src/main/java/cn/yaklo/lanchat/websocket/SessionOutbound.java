@@ -0,0 +1,222 @@
+package cn.yaklo.lanchat.websocket;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个WebSocket会话的有界发送队列
+ * 广播方只负责入队，由发送线程池异步排空，同一会话同一时间只有一个线程在发送。
+ * 控制帧（历史批次、花名册快照和增量等）不可丢弃，DROP_OLDEST只丢弃聊天消息
+ */
+public class SessionOutbound {
+
+    private final WebSocketSession session;
+    private final WireProtocol protocol;
+    private final boolean compression;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long sendTimeLimit;
+    private final Executor executor;
+
+    private final Deque<Outgoing> queue = new ArrayDeque<>();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    // 以下字段由this锁保护
+    private boolean draining = false;
+    private boolean closed = false;
+
+    // 当前这次发送的开始时间，0表示空闲
+    private volatile long sendStartedAt = 0;
+
+    public SessionOutbound(WebSocketSession session, WireProtocol protocol, boolean compression, int capacity,
+                           OverflowPolicy overflowPolicy, long sendTimeLimit, Executor executor) {
+        this.session = session;
+        this.protocol = protocol;
+        this.compression = compression;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.sendTimeLimit = sendTimeLimit;
+        this.executor = executor;
+    }
+
+    public WebSocketSession getSession() {
+        return session;
+    }
+
+    public WireProtocol getProtocol() {
+        return protocol;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * 线路格式标识，协议与压缩设置相同的会话可以共享同一个编码后的消息
+     */
+    public String getWireFormat() {
+        return compression ? protocol.name() + "+gzip" : protocol.name();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * 将消息放入发送队列，不会阻塞调用线程
+     * @param droppable 队列满时是否允许被DROP_OLDEST丢弃，丢失后会让客户端状态不一致的控制帧传false
+     * @return 消息是否被接受
+     */
+    public boolean enqueue(WebSocketMessage<?> message, boolean droppable) {
+        if (!session.isOpen()) {
+            return false;
+        }
+
+        // 上一次发送已经超过限制时间还没完成，说明客户端跟不上
+        long startedAt = sendStartedAt;
+        if (startedAt != 0 && System.currentTimeMillis() - startedAt > sendTimeLimit) {
+            disconnect("发送超时");
+            return false;
+        }
+
+        boolean overflow = false;
+        boolean schedule = false;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (queue.size() >= capacity) {
+                // 队列中全是控制帧时无法腾出位置，同样断开，客户端重连后重新同步
+                overflow = overflowPolicy == OverflowPolicy.DISCONNECT || !dropOldestDroppable();
+            }
+            if (!overflow) {
+                queue.offerLast(new Outgoing(message, droppable));
+                if (!draining) {
+                    draining = true;
+                    schedule = true;
+                }
+            }
+        }
+
+        if (overflow) {
+            disconnect("发送队列已满");
+            return false;
+        }
+        if (schedule) {
+            try {
+                executor.execute(this::drain);
+            } catch (Exception e) {
+                synchronized (this) {
+                    draining = false;
+                }
+                System.err.println("提交发送任务失败: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 关闭队列并丢弃未发送的消息，不关闭底层连接
+     */
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    /**
+     * 丢弃队列中最旧的可丢弃消息
+     * @return 没有可丢弃的消息时返回false
+     */
+    private boolean dropOldestDroppable() {
+        Iterator<Outgoing> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().droppable) {
+                iterator.remove();
+                droppedCount.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        while (true) {
+            WebSocketMessage<?> next;
+            synchronized (this) {
+                Outgoing outgoing = closed ? null : queue.pollFirst();
+                if (outgoing == null) {
+                    draining = false;
+                    return;
+                }
+                next = outgoing.message;
+            }
+
+            if (!session.isOpen()) {
+                close();
+                continue;
+            }
+
+            // 广播时多个会话共享同一个二进制消息，发送会移动缓冲区位置，因此每次发送使用独立视图
+            if (next instanceof BinaryMessage) {
+                next = new BinaryMessage(((BinaryMessage) next).getPayload().duplicate(), next.isLast());
+            }
+
+            sendStartedAt = System.currentTimeMillis();
+            try {
+                session.sendMessage(next);
+            } catch (Exception e) {
+                System.err.println("发送消息失败: " + session.getId() + " - " + e.getMessage());
+                sendStartedAt = 0;
+                disconnect("发送失败");
+                continue;
+            }
+            sendStartedAt = 0;
+        }
+    }
+
+    private void disconnect(String reason) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        close();
+        System.err.println("断开慢客户端: " + session.getId() + " - " + reason);
+
+        // 关闭帧同样可能被卡住的连接阻塞，交给发送线程池处理
+        try {
+            executor.execute(() -> {
+                try {
+                    session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason(reason));
+                } catch (Exception e) {
+                    System.err.println("关闭会话失败: " + e.getMessage());
+                }
+            });
+        } catch (Exception e) {
+            System.err.println("提交关闭任务失败: " + e.getMessage());
+        }
+    }
+
+    private static class Outgoing {
+        private final WebSocketMessage<?> message;
+        private final boolean droppable;
+
+        private Outgoing(WebSocketMessage<?> message, boolean droppable) {
+            this.message = message;
+            this.droppable = droppable;
+        }
+    }
+}
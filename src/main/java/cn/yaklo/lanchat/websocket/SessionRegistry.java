@@ -0,0 +1,153 @@
+package cn.yaklo.lanchat.websocket;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * WebSocket会话注册表
+ * 每个会话拥有独立的有界发送队列，广播的开销只是N次入队，与最慢的接收方无关。
+ * 发送线程池按需扩容，每个会话同时最多占用一个发送线程，阻塞在慢客户端上的线程不会拖住其他会话
+ */
+@Component
+public class SessionRegistry {
+
+    // Tomcat阻塞发送超时的会话属性名
+    private static final String BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+    @Autowired
+    private FrameCodec frameCodec;
+
+    @Value("${lanchat.ws.outbound.queue-capacity:256}")
+    private int queueCapacity;
+
+    @Value("${lanchat.ws.outbound.overflow-policy:DROP_OLDEST}")
+    private OverflowPolicy overflowPolicy;
+
+    @Value("${lanchat.ws.outbound.send-time-limit:10000}")
+    private long sendTimeLimit;
+
+    // 常驻的发送线程数，繁忙时按需增加，空闲60秒后回收到该数量
+    @Value("${lanchat.ws.outbound.sender-threads:8}")
+    private int senderThreads;
+
+    private final Map<String, SessionOutbound> sessions = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor senderPool;
+
+    @PostConstruct
+    public void init() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ws-sender-");
+        threadFactory.setDaemon(true);
+        senderPool = new ThreadPoolExecutor(senderThreads, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), threadFactory);
+        System.out.println("WebSocket发送队列: 容量=" + queueCapacity + ", 溢出策略=" + overflowPolicy
+                + ", 发送超时=" + sendTimeLimit + "ms, 发送线程=" + senderThreads);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        senderPool.shutdown();
+        senderPool.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    public void register(WebSocketSession session) {
+        applySendTimeout(session);
+        sessions.put(session.getId(), new SessionOutbound(session, frameCodec.protocolOf(session),
+                frameCodec.compressionOf(session), queueCapacity, overflowPolicy, sendTimeLimit, senderPool));
+    }
+
+    public void unregister(WebSocketSession session) {
+        SessionOutbound outbound = sessions.remove(session.getId());
+        if (outbound != null) {
+            outbound.close();
+        }
+    }
+
+    /**
+     * 按会话协商的协议编码后发送给单个会话（异步），单独发送的都是控制帧，队列满时不会被丢弃
+     */
+    public boolean send(WebSocketSession session, Object frame) throws IOException {
+        SessionOutbound outbound = sessions.get(session.getId());
+        if (outbound == null) {
+            return false;
+        }
+        return outbound.enqueue(frameCodec.encode(frame, outbound.getProtocol(), outbound.isCompression()), false);
+    }
+
+    /**
+     * 向所有会话广播聊天消息（异步），队列满时可按DROP_OLDEST丢弃
+     */
+    public void broadcast(Object frame) throws IOException {
+        broadcast(frame, true);
+    }
+
+    /**
+     * 向所有会话广播控制帧（如花名册增量），队列满时不会被丢弃
+     */
+    public void broadcastControl(Object frame) throws IOException {
+        broadcast(frame, false);
+    }
+
+    /**
+     * 每种线路格式只编码一次，格式相同的会话共享同一个消息对象
+     */
+    private void broadcast(Object frame, boolean droppable) throws IOException {
+        Map<String, WebSocketMessage<?>> encoded = new HashMap<>();
+        for (SessionOutbound outbound : sessions.values()) {
+            WebSocketMessage<?> message = encoded.get(outbound.getWireFormat());
+            if (message == null) {
+                message = frameCodec.encode(frame, outbound.getProtocol(), outbound.isCompression());
+                encoded.put(outbound.getWireFormat(), message);
+            }
+            outbound.enqueue(message, droppable);
+        }
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public Collection<WebSocketSession> getSessions() {
+        return sessions.values().stream()
+                .map(SessionOutbound::getSession)
+                .collect(Collectors.toList());
+    }
+
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (SessionOutbound outbound : sessions.values()) {
+            dropped += outbound.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    /**
+     * 限制底层阻塞发送的最长时间，超时后发送线程会被释放并断开该会话
+     */
+    private void applySendTimeout(WebSocketSession session) {
+        if (session instanceof NativeWebSocketSession) {
+            Object nativeSession = ((NativeWebSocketSession) session).getNativeSession();
+            if (nativeSession instanceof javax.websocket.Session) {
+                ((javax.websocket.Session) nativeSession).getUserProperties()
+                        .put(BLOCKING_SEND_TIMEOUT, sendTimeLimit);
+            }
+        }
+    }
+}
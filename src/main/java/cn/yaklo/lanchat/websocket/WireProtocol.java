@@ -0,0 +1,34 @@
+package cn.yaklo.lanchat.websocket;
+
+/**
+ * /ws/chat 支持的线路协议，通过WebSocket子协议协商
+ */
+public enum WireProtocol {
+    /**
+     * JSON文本帧，未协商子协议的旧客户端默认使用
+     */
+    JSON("lanchat-json.v1"),
+    /**
+     * CBOR二进制帧，聊天消息使用紧凑的数组布局
+     */
+    CBOR("lanchat-cbor.v1");
+
+    private final String subProtocol;
+
+    WireProtocol(String subProtocol) {
+        this.subProtocol = subProtocol;
+    }
+
+    public String getSubProtocol() {
+        return subProtocol;
+    }
+
+    public static WireProtocol fromSubProtocol(String subProtocol) {
+        for (WireProtocol protocol : values()) {
+            if (protocol.subProtocol.equals(subProtocol)) {
+                return protocol;
+            }
+        }
+        return JSON;
+    }
+}
@@ -0,0 +1,20 @@
+package cn.yaklo.lanchat.websocket.command;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+/**
+ * 客户端通过 /ws/chat 发送的命令
+ * 按type字段直接绑定到对应的不可变命令对象，新增命令只需在此注册
+ */
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.PROPERTY, property = "type")
+@JsonSubTypes({
+        @JsonSubTypes.Type(value = SendMessageCommand.class, name = "sendMessage"),
+        @JsonSubTypes.Type(value = RecallMessageCommand.class, name = "recallMessage"),
+        @JsonSubTypes.Type(value = UpdateUsernameCommand.class, name = "updateUsername"),
+        @JsonSubTypes.Type(value = PresenceSyncCommand.class, name = "presenceSync")
+})
+@JsonIgnoreProperties(ignoreUnknown = true)
+public interface ChatCommand {
+}
@@ -0,0 +1,7 @@
+package cn.yaklo.lanchat.websocket.command;
+
+/**
+ * 客户端发现在线用户增量版本不连续，请求重新发送快照
+ */
+public final class PresenceSyncCommand implements ChatCommand {
+}
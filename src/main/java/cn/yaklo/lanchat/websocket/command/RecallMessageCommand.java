@@ -0,0 +1,19 @@
+package cn.yaklo.lanchat.websocket.command;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Getter;
+
+/**
+ * 撤回自己发送的消息
+ */
+@Getter
+public final class RecallMessageCommand implements ChatCommand {
+
+    private final Long messageId;
+
+    @JsonCreator
+    public RecallMessageCommand(@JsonProperty("messageId") Long messageId) {
+        this.messageId = messageId;
+    }
+}
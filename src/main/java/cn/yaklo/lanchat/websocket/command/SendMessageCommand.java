@@ -0,0 +1,26 @@
+package cn.yaklo.lanchat.websocket.command;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Getter;
+
+/**
+ * 发送消息，发送者信息取自WebSocket会话而不是客户端提交的字段
+ */
+@Getter
+public final class SendMessageCommand implements ChatCommand {
+
+    private final String content;
+    private final ChatMessage.MessageType messageType;
+    private final Long fileId;
+
+    @JsonCreator
+    public SendMessageCommand(@JsonProperty("content") String content,
+                              @JsonProperty("messageType") ChatMessage.MessageType messageType,
+                              @JsonProperty("fileId") Long fileId) {
+        this.content = content;
+        this.messageType = messageType != null ? messageType : ChatMessage.MessageType.TEXT;
+        this.fileId = fileId;
+    }
+}
@@ -0,0 +1,19 @@
+package cn.yaklo.lanchat.websocket.command;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Getter;
+
+/**
+ * 修改当前会话的显示名
+ */
+@Getter
+public final class UpdateUsernameCommand implements ChatCommand {
+
+    private final String userName;
+
+    @JsonCreator
+    public UpdateUsernameCommand(@JsonProperty("userName") String userName) {
+        this.userName = userName;
+    }
+}
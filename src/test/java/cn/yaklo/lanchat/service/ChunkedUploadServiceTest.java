@@ -0,0 +1,207 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatFile;
+import cn.yaklo.lanchat.util.HashUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ChunkedUploadServiceTest {
+
+    private static final String USER_IP = "10.0.0.1";
+
+    // 每个分片4字节，10字节的内容分为3片，最后一片2字节
+    private static final int CHUNK_SIZE = 4;
+    private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path uploadingDir;
+
+    private FileService fileService;
+
+    // saveUploadedFile被调用时临时文件的内容
+    private final AtomicReference<byte[]> saved = new AtomicReference<>();
+    private final ChatFile savedFile = new ChatFile();
+
+    private final List<ChunkedUploadService> opened = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileService = mock(FileService.class);
+        when(fileService.saveUploadedFile(any(), anyString(), anyString(), anyLong(), any(), eq(USER_IP)))
+                .thenAnswer(invocation -> {
+                    saved.set(Files.readAllBytes(invocation.<Path>getArgument(0)));
+                    return savedFile;
+                });
+    }
+
+    @AfterEach
+    void shutdown() {
+        for (ChunkedUploadService service : opened) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void outOfOrderChunksResumeAfterRestart() throws IOException {
+        ChunkedUploadService service = open();
+        ChunkedUploadService.UploadSession session = service.init("a.txt", CONTENT.length, "text/plain",
+                null, USER_IP);
+        assertEquals(3, session.getChunkCount());
+        assertNull(service.getSession(session.getUploadId(), "10.0.0.2"));
+
+        writeChunk(service, session, 2);
+        writeChunk(service, session, 0);
+        assertEquals(Collections.singletonList(1), service.getMissingChunks(session));
+        assertThrows(IllegalStateException.class, () -> service.complete(session));
+
+        // 重启后从会话信息和分片位图恢复，只需补传缺失的分片
+        service.shutdown();
+        opened.remove(service);
+        ChunkedUploadService restarted = open();
+        ChunkedUploadService.UploadSession resumed = restarted.getSession(session.getUploadId(), USER_IP);
+        assertNotNull(resumed);
+        assertEquals(Collections.singletonList(1), restarted.getMissingChunks(resumed));
+
+        writeChunk(restarted, resumed, 1);
+        assertSame(savedFile, restarted.complete(resumed));
+        assertArrayEquals(CONTENT, saved.get());
+        assertNull(restarted.getSession(session.getUploadId(), USER_IP));
+        assertFalse(Files.exists(uploadingDir.resolve(session.getUploadId() + ".meta")));
+        assertFalse(Files.exists(uploadingDir.resolve(session.getUploadId() + ".chunks")));
+    }
+
+    @Test
+    void badChunkMustBeUploadedAgain() throws IOException {
+        ChunkedUploadService service = open();
+        ChunkedUploadService.UploadSession session = service.init("a.txt", CONTENT.length, null, null, USER_IP);
+        writeChunk(service, session, 0);
+
+        // 已收到的分片重传失败后，该位置的内容不再可信
+        assertThrows(IllegalArgumentException.class,
+                () -> service.writeChunk(session, 0, new ByteArrayInputStream(new byte[3])));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.writeChunk(session, 0, new ByteArrayInputStream(new byte[5])));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.writeChunk(session, 3, new ByteArrayInputStream(new byte[4])));
+        assertEquals(Arrays.asList(0, 1, 2), service.getMissingChunks(session));
+    }
+
+    @Test
+    void hashMismatchDiscardsAllChunks() throws IOException {
+        ChunkedUploadService service = open();
+        String otherHash = HashUtil.toHex(HashUtil.sha256().digest("other".getBytes(StandardCharsets.US_ASCII)));
+        ChunkedUploadService.UploadSession session = service.init("a.txt", CONTENT.length, null, otherHash, USER_IP);
+        for (int i = 0; i < 3; i++) {
+            writeChunk(service, session, i);
+        }
+
+        assertThrows(IllegalStateException.class, () -> service.complete(session));
+        assertEquals(Arrays.asList(0, 1, 2), service.getMissingChunks(session));
+        assertNull(saved.get());
+
+        // 会话仍可继续上传
+        writeChunk(service, session, 0);
+        assertEquals(Arrays.asList(1, 2), service.getMissingChunks(session));
+    }
+
+    @Test
+    void failedCompleteCanBeRetried() throws IOException {
+        when(fileService.saveUploadedFile(any(), anyString(), anyString(), anyLong(), any(), eq(USER_IP)))
+                .thenThrow(new IOException("磁盘已满"))
+                .thenReturn(savedFile);
+        ChunkedUploadService service = open();
+        ChunkedUploadService.UploadSession session = service.init("a.txt", CONTENT.length, null, null, USER_IP);
+        for (int i = 0; i < 3; i++) {
+            writeChunk(service, session, i);
+        }
+
+        // 临时文件还在，恢复为未完成状态
+        assertThrows(IOException.class, () -> service.complete(session));
+        assertSame(session, service.getSession(session.getUploadId(), USER_IP));
+        assertTrue(service.getMissingChunks(session).isEmpty());
+        assertSame(savedFile, service.complete(session));
+        assertNull(service.getSession(session.getUploadId(), USER_IP));
+    }
+
+    @Test
+    void failedCompleteAfterDataMovedAbortsSession() throws IOException {
+        when(fileService.saveUploadedFile(any(), anyString(), anyString(), anyLong(), any(), eq(USER_IP)))
+                .thenAnswer(invocation -> {
+                    Files.delete(invocation.<Path>getArgument(0));
+                    throw new IOException("保存文件记录失败");
+                });
+        ChunkedUploadService service = open();
+        ChunkedUploadService.UploadSession session = service.init("a.txt", CONTENT.length, null, null, USER_IP);
+        for (int i = 0; i < 3; i++) {
+            writeChunk(service, session, i);
+        }
+
+        assertThrows(IOException.class, () -> service.complete(session));
+        assertNull(service.getSession(session.getUploadId(), USER_IP));
+        assertEquals(0, service.getActiveSessionCount());
+        assertFalse(Files.exists(uploadingDir.resolve(session.getUploadId() + ".meta")));
+    }
+
+    @Test
+    void restartDropsSessionsWithoutData() throws IOException {
+        ChunkedUploadService service = open();
+        ChunkedUploadService.UploadSession session = service.init("a.txt", CONTENT.length, null, null, USER_IP);
+        writeChunk(service, session, 0);
+        service.shutdown();
+        opened.remove(service);
+        Files.delete(uploadingDir.resolve(session.getUploadId() + ".part"));
+
+        ChunkedUploadService restarted = open();
+        assertNull(restarted.getSession(session.getUploadId(), USER_IP));
+        assertFalse(Files.exists(uploadingDir.resolve(session.getUploadId() + ".meta")));
+        assertFalse(Files.exists(uploadingDir.resolve(session.getUploadId() + ".chunks")));
+    }
+
+    private ChunkedUploadService open() throws IOException {
+        ChunkedUploadService service = new ChunkedUploadService();
+        ReflectionTestUtils.setField(service, "fileService", fileService);
+        ReflectionTestUtils.setField(service, "uploadingDir", uploadingDir.toString());
+        ReflectionTestUtils.setField(service, "chunkSize", CHUNK_SIZE);
+        ReflectionTestUtils.setField(service, "maxFileSize", 1024L);
+        ReflectionTestUtils.setField(service, "sessionTtl", 86400000L);
+        service.init();
+        opened.add(service);
+        return service;
+    }
+
+    private static void writeChunk(ChunkedUploadService service, ChunkedUploadService.UploadSession session,
+                                   int index) throws IOException {
+        int from = index * CHUNK_SIZE;
+        byte[] chunk = Arrays.copyOfRange(CONTENT, from, Math.min(from + CHUNK_SIZE, CONTENT.length));
+        service.writeChunk(session, index, new ByteArrayInputStream(chunk));
+    }
+}
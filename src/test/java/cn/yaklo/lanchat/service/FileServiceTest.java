@@ -0,0 +1,142 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatFile;
+import cn.yaklo.lanchat.repository.ChatFileRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FileServiceTest {
+
+    private static final String HASH = "ab12cd34ef";
+    private static final String OWNER = "10.0.0.1";
+    private static final String OTHER = "10.0.0.2";
+
+    @TempDir
+    Path dir;
+
+    // 文件ID -> 文件记录，代替数据库
+    private final Map<Long, ChatFile> records = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    private ThumbnailService thumbnailService;
+
+    private FileService fileService;
+
+    private Path blob;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ChatFileRepository repository = mock(ChatFileRepository.class);
+        when(repository.save(any())).thenAnswer(invocation -> {
+            ChatFile chatFile = invocation.getArgument(0);
+            chatFile.setId(nextId.getAndIncrement());
+            records.put(chatFile.getId(), chatFile);
+            return chatFile;
+        });
+        doAnswer(invocation -> records.remove(((ChatFile) invocation.getArgument(0)).getId()))
+                .when(repository).delete(any());
+        when(repository.findById(anyLong()))
+                .thenAnswer(invocation -> Optional.ofNullable(records.get(invocation.<Long>getArgument(0))));
+        when(repository.existsByFilePath(anyString())).thenAnswer(invocation -> records.values().stream()
+                .anyMatch(chatFile -> chatFile.getFilePath().equals(invocation.getArgument(0))));
+        when(repository.findFirstByContentHash(anyString())).thenAnswer(invocation -> records.values().stream()
+                .filter(chatFile -> invocation.getArgument(0).equals(chatFile.getContentHash()))
+                .findFirst());
+
+        thumbnailService = mock(ThumbnailService.class);
+        fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "chatFileRepository", repository);
+        ReflectionTestUtils.setField(fileService, "fileMetadataCache", mock(FileMetadataCache.class));
+        ReflectionTestUtils.setField(fileService, "chatCounters", mock(ChatCounters.class));
+        ReflectionTestUtils.setField(fileService, "thumbnailService", thumbnailService);
+
+        blob = Files.write(dir.resolve(HASH), "hello".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void blobIsKeptUntilLastReferenceIsDeleted() {
+        ChatFile original = upload(OWNER);
+        ChatFile copy = fileService.copyByContentHash(HASH, "b.txt", null, OTHER);
+        assertNotNull(copy);
+        assertEquals(original.getFilePath(), copy.getFilePath());
+        assertEquals("text/plain", copy.getContentType());
+        assertEquals(2, records.size());
+
+        // 还有其他记录引用同一物理文件，只删除记录
+        assertTrue(fileService.deleteFile(original.getId(), OWNER));
+        assertTrue(Files.exists(blob));
+        verify(thumbnailService, never()).delete(anyString());
+
+        // 最后一个引用删除后删除物理文件和缩略图
+        assertTrue(fileService.deleteFile(copy.getId(), OTHER));
+        assertFalse(Files.exists(blob));
+        verify(thumbnailService).delete(HASH);
+        assertTrue(records.isEmpty());
+    }
+
+    @Test
+    void onlyUploaderCanDelete() {
+        ChatFile original = upload(OWNER);
+        assertFalse(fileService.deleteFile(original.getId(), OTHER));
+        assertFalse(fileService.deleteFile(999L, OWNER));
+        assertEquals(1, records.size());
+        assertTrue(Files.exists(blob));
+    }
+
+    @Test
+    void copyRequiresExistingBlob() throws IOException {
+        // 没有该内容的记录
+        assertNull(fileService.copyByContentHash(HASH, "b.txt", null, OTHER));
+
+        // 有记录但物理文件已不存在
+        upload(OWNER);
+        Files.delete(blob);
+        assertNull(fileService.copyByContentHash(HASH, "b.txt", null, OTHER));
+        assertEquals(1, records.size());
+    }
+
+    @Test
+    void copyAfterLastReferenceIsDeletedFails() {
+        ChatFile original = upload(OWNER);
+        assertTrue(fileService.deleteFile(original.getId(), OWNER));
+        assertNull(fileService.copyByContentHash(HASH, "b.txt", null, OTHER));
+        assertTrue(records.isEmpty());
+    }
+
+    /**
+     * 直接保存一条引用测试物理文件的记录，相当于上传完成
+     */
+    private ChatFile upload(String userIp) {
+        ChatFile chatFile = new ChatFile("a.txt", HASH, blob.toString(), 5L, "text/plain", userIp);
+        chatFile.setContentHash(HASH);
+        chatFile.setId(nextId.getAndIncrement());
+        records.put(chatFile.getId(), chatFile);
+        return chatFile;
+    }
+}
@@ -0,0 +1,161 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.store.MessageStore;
+import cn.yaklo.lanchat.util.SearchTextUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageSearchIndexTest {
+
+    @TempDir
+    Path indexDir;
+
+    private final List<MessageSearchIndex> opened = new ArrayList<>();
+
+    // 消息ID -> 原文，search校验时使用
+    private final Map<Long, String> contents = new HashMap<>();
+
+    @AfterEach
+    void shutdown() {
+        for (MessageSearchIndex index : opened) {
+            index.shutdown();
+        }
+    }
+
+    @Test
+    void mixedCjkAndAsciiQueries() throws InterruptedException {
+        MessageSearchIndex index = open();
+        index.add(message(1, "今天学习Spring框架"));
+        index.add(message(2, "spring boot 入门"));
+        index.add(message(3, "学习Java编程"));
+        index.add(message(4, "明天去学校"));
+
+        assertEquals(Arrays.asList(3L, 1L), search(index, "学习"));
+        assertEquals(Arrays.asList(2L, 1L), search(index, "spring"));
+        assertEquals(Collections.singletonList(1L), search(index, "学习 SPRING"));
+        // 单词按前缀匹配
+        assertEquals(Collections.singletonList(3L), search(index, "jav"));
+        // 中英文相连的查询
+        assertEquals(Collections.singletonList(3L), search(index, "学习Java"));
+        assertEquals(Collections.singletonList(1L), search(index, "Spring框架"));
+        // 单个汉字按单字匹配
+        assertEquals(Arrays.asList(4L, 3L, 1L), search(index, "学"));
+        // 用户名同样被索引
+        assertEquals(Arrays.asList(4L, 3L, 2L, 1L), search(index, "张三"));
+        assertEquals(Collections.emptyList(), search(index, "python"));
+        // 二元组都存在但不相连的候选由原文校验排除
+        index.add(message(5, "学校习惯"));
+        assertTrue(candidates(index, "校习").contains(5L));
+        assertEquals(Collections.emptyList(), search(index, "学习惯"));
+    }
+
+    @Test
+    void recalledMessageNoLongerMatches() throws InterruptedException {
+        MessageSearchIndex index = open();
+        index.add(message(1, "会议改到下午三点"));
+        index.add(message(2, "下午的会议取消"));
+        assertEquals(Arrays.asList(2L, 1L), search(index, "会议"));
+
+        index.remove(1);
+        assertEquals(Collections.singletonList(2L), search(index, "会议"));
+        assertEquals(Collections.emptyList(), search(index, "三点"));
+
+        // 已撤回的消息不会被加入索引
+        ChatMessage recalled = message(3, "会议纪要");
+        recalled.recall();
+        index.add(recalled);
+        assertEquals(Collections.singletonList(2L), search(index, "会议"));
+
+        // 保存快照时从倒排表中清除，重新加载后仍不匹配
+        index.shutdown();
+        opened.remove(index);
+        MessageSearchIndex reloaded = open();
+        assertEquals(Collections.singletonList(2L), search(reloaded, "会议"));
+        assertEquals(Collections.emptyList(), search(reloaded, "三点"));
+        assertEquals(0, reloaded.snapshot().get("removed"));
+    }
+
+    @Test
+    void prefixExpansionReportsTruncation() throws InterruptedException {
+        MessageSearchIndex index = open();
+        for (int i = 0; i < 65; i++) {
+            index.add(message(i + 1, "word" + i));
+        }
+        assertFalse(index.isPrefixTruncated(SearchTextUtil.queryTokens("word1")));
+        assertFalse(index.isPrefixTruncated(SearchTextUtil.queryTokens("单词")));
+        assertTrue(index.isPrefixTruncated(SearchTextUtil.queryTokens("word")));
+        // 只展开了前64个词项
+        assertEquals(64, candidates(index, "word").size());
+    }
+
+    private MessageSearchIndex open() throws InterruptedException {
+        MessageStore store = mock(MessageStore.class);
+        when(store.findActiveAfter(anyLong(), anyInt())).thenReturn(Collections.emptyList());
+
+        MessageSearchIndex index = new MessageSearchIndex();
+        ReflectionTestUtils.setField(index, "messageStore", store);
+        ReflectionTestUtils.setField(index, "indexFile", indexDir.resolve("index.bin").toString());
+        ReflectionTestUtils.setField(index, "snapshotInterval", 3600000L);
+        index.init();
+        for (int i = 0; i < 100 && !index.isReady(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(index.isReady());
+        opened.add(index);
+        return index;
+    }
+
+    /**
+     * 与ChatService一致：各查询词的词项一起检索候选，再用原文校验每个查询词
+     */
+    private List<Long> search(MessageSearchIndex index, String query) {
+        List<String> terms = SearchTextUtil.splitTerms(query);
+        List<Long> result = new ArrayList<>();
+        for (Long id : candidates(index, query)) {
+            String content = contents.get(id);
+            boolean all = true;
+            for (String term : terms) {
+                all &= SearchTextUtil.containsTerm(content, term) || SearchTextUtil.containsTerm("张三", term);
+            }
+            if (all) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    private static List<Long> candidates(MessageSearchIndex index, String query) {
+        List<SearchTextUtil.QueryToken> tokens = new ArrayList<>();
+        for (String term : SearchTextUtil.splitTerms(query)) {
+            tokens.addAll(SearchTextUtil.queryTokens(term));
+        }
+        return index.candidates(tokens, Long.MAX_VALUE, 100);
+    }
+
+    private ChatMessage message(long id, String content) {
+        ChatMessage message = new ChatMessage("10.0.0.1", "10.0.0.1", "张三", content,
+                ChatMessage.MessageType.TEXT, null);
+        message.setId(id);
+        contents.put(id, content);
+        return message;
+    }
+}
@@ -0,0 +1,200 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.store.MessageStore;
+import cn.yaklo.lanchat.util.SequenceUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageSequencerTest {
+
+    private static final int BLOCK_SIZE = 10;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private MessageWriteBehind writeBehind;
+
+    // 按进入写入队列的顺序记录的消息ID
+    private final List<Long> submitted = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        writeBehind = mock(MessageWriteBehind.class);
+        when(writeBehind.getOfferTimeout()).thenReturn(1000L);
+        when(writeBehind.trySubmit(any())).thenAnswer(invocation -> {
+            submitted.add(((ChatMessage) invocation.getArgument(0)).getId());
+            return true;
+        });
+    }
+
+    @Test
+    void reservesBlocksAfterExistingMessages() {
+        MessageSequencer sequencer = open(41L);
+        assertEquals(41, sequencer.getLastSequence());
+
+        for (int i = 0; i < 25; i++) {
+            sequencer.accept(message());
+        }
+        assertEquals(range(42, 66), submitted);
+        assertEquals(66, sequencer.getLastSequence());
+
+        // 已预留了三个块，序列的下一个值是第四块的起点
+        assertEquals(72, SequenceUtil.nextValue(jdbcTemplate, "chat_message_seq"));
+    }
+
+    @Test
+    void restartSkipsRestOfReservedBlock() {
+        MessageSequencer sequencer = open(0L);
+        for (int i = 0; i < 3; i++) {
+            sequencer.accept(message());
+        }
+
+        // 重启时只有部分消息已入库，新序号从下一个块开始，不复用已经广播过的ID
+        submitted.clear();
+        MessageSequencer restarted = open(2L);
+        restarted.accept(message());
+        assertEquals(Collections.singletonList(11L), submitted);
+    }
+
+    @Test
+    void timestampsNeverGoBackwards() {
+        MessageSequencer sequencer = open(0L);
+        // 模拟系统时钟回拨：上一条消息的时间在当前时间之后
+        LocalDateTime future = LocalDateTime.now().plusHours(1);
+        ReflectionTestUtils.setField(sequencer, "lastTimestamp", future);
+
+        ChatMessage first = sequencer.accept(message());
+        ChatMessage second = sequencer.accept(message());
+        assertEquals(future, first.getTimestamp());
+        assertEquals(future, second.getTimestamp());
+        assertEquals(first.getId() + 1, (long) second.getId());
+
+        // 时钟追上之后恢复使用当前时间
+        ReflectionTestUtils.setField(sequencer, "lastTimestamp", LocalDateTime.now().minusHours(1));
+        ChatMessage third = sequencer.accept(message());
+        assertFalse(third.getTimestamp().isBefore(LocalDateTime.now().minusMinutes(1)));
+    }
+
+    @Test
+    void fullQueueDoesNotConsumeSequence() {
+        AtomicInteger rejections = new AtomicInteger(2);
+        doAnswer(invocation -> {
+            if (rejections.getAndDecrement() > 0) {
+                return false;
+            }
+            submitted.add(((ChatMessage) invocation.getArgument(0)).getId());
+            return true;
+        }).when(writeBehind).trySubmit(any());
+        MessageSequencer sequencer = open(0L);
+
+        // 两次入队失败后在锁外等待空位，重试时仍使用同一个序号
+        assertEquals(1L, (long) sequencer.accept(message()).getId());
+        assertEquals(Collections.singletonList(1L), submitted);
+
+        // 等待超时时消息被拒绝，序号留给下一条消息
+        rejections.set(1);
+        doThrow(new IllegalStateException("消息写入队列已满，请稍后重试")).when(writeBehind).awaitCapacity(anyLong());
+        assertThrows(IllegalStateException.class, () -> sequencer.accept(message()));
+        assertEquals(1, sequencer.getLastSequence());
+        assertEquals(2L, (long) sequencer.accept(message()).getId());
+    }
+
+    @Test
+    void waitingSenderDoesNotHoldMonitor() throws InterruptedException {
+        AtomicInteger rejections = new AtomicInteger(1);
+        doAnswer(invocation -> {
+            if (rejections.getAndDecrement() > 0) {
+                return false;
+            }
+            submitted.add(((ChatMessage) invocation.getArgument(0)).getId());
+            return true;
+        }).when(writeBehind).trySubmit(any());
+        CountDownLatch waiting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            waiting.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(writeBehind).awaitCapacity(anyLong());
+        MessageSequencer sequencer = open(0L);
+
+        Thread blocked = new Thread(() -> sequencer.accept(message()));
+        blocked.start();
+        assertTrue(waiting.await(5, TimeUnit.SECONDS));
+
+        // 第一个发送者等待空位期间，其他发送者不在定序器锁上排队
+        assertEquals(1L, (long) sequencer.accept(message()).getId());
+        release.countDown();
+        blocked.join(5000);
+        assertEquals(Arrays.asList(1L, 2L), submitted);
+    }
+
+    @Test
+    void concurrentSendersGetContiguousIdsInQueueOrder() throws InterruptedException {
+        MessageSequencer sequencer = open(0L);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    sequencer.accept(message());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(range(1, 800), submitted);
+    }
+
+    private MessageSequencer open(Long maxId) {
+        MessageStore store = mock(MessageStore.class);
+        when(store.findMaxId()).thenReturn(maxId);
+        MessageSequencer sequencer = new MessageSequencer();
+        ReflectionTestUtils.setField(sequencer, "messageStore", store);
+        ReflectionTestUtils.setField(sequencer, "messageWriteBehind", writeBehind);
+        ReflectionTestUtils.setField(sequencer, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(sequencer, "blockSize", BLOCK_SIZE);
+        sequencer.init();
+        return sequencer;
+    }
+
+    private static ChatMessage message() {
+        return new ChatMessage("10.0.0.1", "10.0.0.1", "张三", "你好", ChatMessage.MessageType.TEXT, null);
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> ids = new ArrayList<>();
+        for (long id = from; id <= to; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,231 @@
+package cn.yaklo.lanchat.service;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import cn.yaklo.lanchat.store.MessageStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.BeanUtils;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class MessageWriteBehindTest {
+
+    // 写入ID为0的消息时写线程在此等待，用来让后面的消息在队列中积压
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final CountDownLatch blocked = new CountDownLatch(1);
+
+    // 每次saveAll调用前执行，可抛出异常模拟写入失败
+    private volatile Consumer<List<ChatMessage>> failure = messages -> { };
+
+    // 每次成功的saveAll调用写入的消息ID，按调用顺序
+    private final List<List<Long>> batches = Collections.synchronizedList(new ArrayList<>());
+
+    private MessageStore store;
+
+    private MessageWriteBehind writeBehind;
+
+    @BeforeEach
+    void setUp() {
+        store = mock(MessageStore.class);
+        doAnswer(invocation -> {
+            List<ChatMessage> messages = invocation.getArgument(0);
+            if (messages.get(0).getId() == 0) {
+                blocked.countDown();
+                gate.await(5, TimeUnit.SECONDS);
+            }
+            failure.accept(messages);
+            batches.add(ids(messages));
+            return null;
+        }).when(store).saveAll(anyList());
+    }
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        gate.countDown();
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+        }
+    }
+
+    @Test
+    void flushesInBatchesAndReleasesPending() throws InterruptedException {
+        writeBehind = open(100, 3, 1000);
+        blockWriter();
+        for (long id = 1; id <= 8; id++) {
+            writeBehind.submit(message(id));
+        }
+        assertEquals(range(0, 8), ids(writeBehind.getPendingMessages()));
+
+        gate.countDown();
+        waitForPending(0);
+        assertTrue(writeBehind.getPendingMessages().isEmpty());
+
+        List<Long> written = new ArrayList<>();
+        for (List<Long> batch : batches) {
+            assertTrue(batch.size() <= 3, "批大小 " + batch.size());
+            written.addAll(batch);
+        }
+        assertEquals(range(0, 8), written);
+    }
+
+    @Test
+    void retriesFailedBatchOneByOne() throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+        failure = messages -> {
+            if (messages.size() > 1) {
+                throw new IllegalStateException("批量写入失败");
+            }
+            long id = messages.get(0).getId();
+            if (id == 2) {
+                throw new DataIntegrityViolationException("数据有误");
+            }
+            if (id == 3 && attempts.incrementAndGet() <= 2) {
+                throw new IllegalStateException("数据库暂时不可用");
+            }
+        };
+        writeBehind = open(100, 10, 1000);
+        blockWriter();
+        for (long id = 1; id <= 4; id++) {
+            writeBehind.submit(message(id));
+        }
+
+        gate.countDown();
+        waitForPending(0);
+
+        // 数据有误的消息被丢弃，暂时失败的消息重试后写入，两者都不再留在待写入集合中
+        assertEquals(Arrays.asList(0L, 1L, 3L, 4L), written());
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void drainsQueueOnShutdownAndRejectsLaterSubmits() throws InterruptedException {
+        writeBehind = open(100, 2, 1000);
+        blockWriter();
+        for (long id = 1; id <= 5; id++) {
+            writeBehind.submit(message(id));
+        }
+
+        MessageWriteBehind stopping = writeBehind;
+        writeBehind = null;
+        Thread stopper = new Thread(() -> {
+            try {
+                stopping.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        stopper.start();
+        for (int i = 0; i < 250 && stopper.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(20);
+        }
+        assertThrows(IllegalStateException.class, () -> stopping.submit(message(6)));
+
+        gate.countDown();
+        stopper.join(5000);
+        assertFalse(stopper.isAlive());
+        assertEquals(range(0, 5), written());
+        assertTrue(stopping.getPendingMessages().isEmpty());
+    }
+
+    @Test
+    void rejectedRecallKeepsQueuedOriginalPending() throws InterruptedException {
+        writeBehind = open(1, 10, 50);
+        blockWriter();
+        // 写线程卡在第0条，第1条占满容量为1的队列
+        ChatMessage original = message(1);
+        writeBehind.submit(original);
+
+        ChatMessage recalled = new ChatMessage();
+        BeanUtils.copyProperties(original, recalled);
+        recalled.markNotNew();
+        recalled.recall();
+        assertThrows(IllegalStateException.class, () -> writeBehind.submit(recalled));
+        assertSame(original, writeBehind.getPending(1L));
+
+        // 不等待的提交被拒绝时不留下记录，等待空位到期后抛出异常
+        assertFalse(writeBehind.trySubmit(message(2)));
+        assertNull(writeBehind.getPending(2L));
+        long deadline = System.currentTimeMillis() + 50;
+        assertThrows(IllegalStateException.class, () -> writeBehind.awaitCapacity(deadline));
+
+        gate.countDown();
+        waitForPending(0);
+        assertEquals(range(0, 1), written());
+
+        // 写线程取走后有了空位
+        writeBehind.awaitCapacity(System.currentTimeMillis() + 1000);
+        assertTrue(writeBehind.trySubmit(message(2)));
+    }
+
+    private MessageWriteBehind open(int capacity, int batchSize, long offerTimeout) {
+        MessageWriteBehind writeBehind = new MessageWriteBehind();
+        ReflectionTestUtils.setField(writeBehind, "messageStore", store);
+        ReflectionTestUtils.setField(writeBehind, "capacity", capacity);
+        ReflectionTestUtils.setField(writeBehind, "batchSize", batchSize);
+        ReflectionTestUtils.setField(writeBehind, "flushInterval", 20L);
+        ReflectionTestUtils.setField(writeBehind, "offerTimeout", offerTimeout);
+        writeBehind.init();
+        return writeBehind;
+    }
+
+    /**
+     * 提交ID为0的消息并等写线程开始写入它，之后写线程卡住直到gate打开
+     */
+    private void blockWriter() throws InterruptedException {
+        writeBehind.submit(message(0));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    }
+
+    private void waitForPending(int expected) throws InterruptedException {
+        for (int i = 0; i < 250 && writeBehind.getPendingMessages().size() != expected; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, writeBehind.getPendingMessages().size());
+    }
+
+    private List<Long> written() {
+        synchronized (batches) {
+            return batches.stream().flatMap(List::stream).collect(Collectors.toList());
+        }
+    }
+
+    private static ChatMessage message(long id) {
+        ChatMessage message = new ChatMessage("10.0.0.1", "10.0.0.1", "张三", "content-" + id,
+                ChatMessage.MessageType.TEXT, null);
+        message.setId(id);
+        return message;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> ids = new ArrayList<>();
+        for (long id = from; id <= to; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static List<Long> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::getId).collect(Collectors.toList());
+    }
+}
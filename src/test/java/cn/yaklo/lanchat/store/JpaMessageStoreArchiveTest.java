@@ -0,0 +1,128 @@
+package cn.yaklo.lanchat.store;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static cn.yaklo.lanchat.store.MessageArchiveTest.ids;
+import static cn.yaklo.lanchat.store.MessageArchiveTest.messages;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 热表与归档拼接后的游标查询：ID 1-4 在归档中，5-10 在chat_messages表中
+ */
+@DataJpaTest(properties = "lanchat.archive.cached-files=1")
+@Import({JpaMessageStore.class, MessageArchive.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+class JpaMessageStoreArchiveTest {
+
+    @TempDir
+    static Path archiveDir;
+
+    @DynamicPropertySource
+    static void archiveProperties(DynamicPropertyRegistry registry) {
+        registry.add("lanchat.archive.dir", () -> archiveDir.toString());
+    }
+
+    @Autowired
+    private JpaMessageStore store;
+
+    @Autowired
+    private MessageArchive archive;
+
+    // 每个测试重建上下文，归档目录也要清空
+    @AfterEach
+    void clearArchive() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(archiveDir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void cursorQueriesSpanArchiveBoundary() throws IOException {
+        archiveFirstFour();
+
+        assertEquals(4, archive.getMaxId());
+        assertEquals(10, store.count());
+        assertEquals(Long.valueOf(10), store.findMaxId());
+
+        // 倒序翻页：每页3条，第二页和第三页跨越热表与归档的边界
+        List<Long> backward = new ArrayList<>();
+        long cursor = Long.MAX_VALUE;
+        List<ChatMessage> page;
+        while (!(page = store.findActiveBefore(cursor, 3)).isEmpty()) {
+            backward.addAll(ids(page));
+            cursor = page.get(page.size() - 1).getId();
+        }
+        assertEquals(ids(10, 1), backward);
+
+        // 正序翻页
+        List<Long> forward = new ArrayList<>();
+        cursor = 0;
+        while (!(page = store.findActiveAfter(cursor, 3)).isEmpty()) {
+            forward.addAll(ids(page));
+            cursor = page.get(page.size() - 1).getId();
+        }
+        assertEquals(ids(1, 10), forward);
+
+        assertEquals(ids(6, 3), ids(store.findActiveBefore(7, 4)));
+        assertEquals(ids(3, 6), ids(store.findActiveAfter(2, 4)));
+        assertEquals(ids(10, 1), ids(store.findNewest(100)));
+        assertEquals(ids(5, 2), ids(store.findByUserBefore("10.0.0.1", 6, 4)));
+
+        List<ChatMessage> exported = new ArrayList<>();
+        store.forEachActiveAfter(2, exported::add);
+        assertEquals(ids(3, 10), ids(exported));
+    }
+
+    @Test
+    void recallOfArchivedMessageIsSkippedByCursorQueries() throws IOException {
+        archiveFirstFour();
+
+        ChatMessage recalled = store.findById(3);
+        recalled.recall();
+        store.saveAll(Collections.singletonList(recalled));
+
+        assertTrue(store.findById(3).getRecalled());
+        assertEquals(9, store.countActive());
+        assertFalse(ids(store.findActiveBefore(5, 10)).contains(3L));
+        assertEquals(Arrays.asList(2L, 4L, 5L, 6L), ids(store.findActiveAfter(1, 4)));
+        assertEquals(Arrays.asList(6L, 5L, 4L, 2L), ids(store.findActiveBefore(7, 4)));
+    }
+
+    private void archiveFirstFour() throws IOException {
+        List<ChatMessage> messages = messages(1, 10);
+        LocalDateTime recent = LocalDateTime.now();
+        for (ChatMessage message : messages.subList(4, 10)) {
+            message.setTimestamp(recent);
+        }
+        store.saveAll(messages);
+        assertEquals(4, store.archiveBefore(recent.minusDays(1), 100));
+        // 剩下的消息都比截止时间新，不再归档
+        assertEquals(0, store.archiveBefore(recent.minusDays(1), 100));
+    }
+}
@@ -0,0 +1,117 @@
+package cn.yaklo.lanchat.store;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageArchiveTest {
+
+    @TempDir
+    Path archiveDir;
+
+    @Test
+    void writeRangeAndReadBack() throws IOException {
+        MessageArchive archive = open();
+        archive.write(messages(1, 5));
+        archive.write(messages(6, 10));
+
+        assertEquals(10, archive.getMaxId());
+        assertEquals(10, archive.count());
+        for (long id = 1; id <= 10; id++) {
+            ChatMessage message = archive.findById(id);
+            assertNotNull(message, "消息 " + id);
+            assertEquals("content-" + id, message.getContent());
+            assertEquals("user-" + id, message.getUserName());
+        }
+        assertNull(archive.findById(11));
+
+        assertEquals(ids(10, 7), ids(archive.findBefore(Long.MAX_VALUE, message -> true, 4)));
+        assertEquals(ids(5, 3), ids(archive.findBefore(6, message -> true, 3)));
+        assertEquals(ids(4, 8), ids(archive.findAfter(3, message -> true, 5)));
+
+        List<ChatMessage> all = new ArrayList<>();
+        archive.forEachAfter(0, message -> true, all::add);
+        assertEquals(ids(1, 10), ids(all));
+
+        // 重新打开只读取文件头，内容在查询时解压
+        MessageArchive reopened = open();
+        assertEquals(10, reopened.getMaxId());
+        assertEquals(10, reopened.count());
+        assertEquals(Long.valueOf(10), reopened.countActiveByUser().get("10.0.0.1"));
+        assertEquals(ids(1, 10), ids(reopened.findAfter(0, message -> true, 100)));
+    }
+
+    @Test
+    void recallOfArchivedMessageIsPersisted() throws IOException {
+        MessageArchive archive = open();
+        archive.write(messages(1, 5));
+
+        ChatMessage message = archive.findById(3);
+        ChatMessage recalled = new ChatMessage();
+        recalled.setId(message.getId());
+        recalled.setUserIp(message.getUserIp());
+        recalled.recall();
+        archive.recall(recalled);
+
+        assertTrue(archive.findById(3).getRecalled());
+        assertEquals(4, archive.countActive());
+
+        MessageArchive reopened = open();
+        ChatMessage reloaded = reopened.findById(3);
+        assertTrue(reloaded.getRecalled());
+        assertEquals("[消息已被撤回]", reloaded.getContent());
+        assertEquals(4, reopened.countActive());
+        assertEquals(5, reopened.count());
+        assertEquals(ids(5, 4), ids(reopened.findBefore(Long.MAX_VALUE,
+                candidate -> !Boolean.TRUE.equals(candidate.getRecalled()), 2)));
+    }
+
+    private MessageArchive open() throws IOException {
+        MessageArchive archive = new MessageArchive();
+        ReflectionTestUtils.setField(archive, "archiveDir", archiveDir.toString());
+        ReflectionTestUtils.setField(archive, "cachedFiles", 1);
+        archive.init();
+        return archive;
+    }
+
+    static List<ChatMessage> messages(long fromId, long toId) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (long id = fromId; id <= toId; id++) {
+            ChatMessage message = new ChatMessage("10.0.0.1", "10.0.0.1", "user-" + id, "content-" + id,
+                    ChatMessage.MessageType.TEXT, null);
+            message.setId(id);
+            message.setTimestamp(LocalDateTime.of(2020, 1, 1, 0, 0).plusMinutes(id));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * from到to（含两端）的连续ID，from大于to时为倒序
+     */
+    static List<Long> ids(long from, long to) {
+        List<Long> ids = new ArrayList<>();
+        long step = from <= to ? 1 : -1;
+        for (long id = from; id != to + step; id += step) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    static List<Long> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::getId).collect(Collectors.toList());
+    }
+}
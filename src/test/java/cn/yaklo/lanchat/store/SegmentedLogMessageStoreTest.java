@@ -0,0 +1,208 @@
+package cn.yaklo.lanchat.store;
+
+import cn.yaklo.lanchat.entity.ChatMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedLogMessageStoreTest {
+
+    // 每段只能放下几条记录，少量消息即可跨段
+    private static final int SEGMENT_SIZE = 512;
+
+    @TempDir
+    Path logDir;
+
+    private SegmentedLogMessageStore store;
+
+    @AfterEach
+    void close() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    void appendAndReadAcrossSegments() throws IOException {
+        store = open();
+        store.saveAll(messages(1, 20));
+
+        assertTrue(segmentFiles().length > 1, "消息应分布在多个段中");
+        assertEquals(20, store.count());
+        assertEquals(20L, store.findMaxId());
+        for (long id = 1; id <= 20; id++) {
+            ChatMessage message = store.findById(id);
+            assertNotNull(message, "消息 " + id);
+            assertEquals("content-" + id, message.getContent());
+        }
+        assertEquals(range(1, 20), ids(store.findActiveAfter(0, 100)));
+        assertEquals(reversed(range(1, 20)), ids(store.findActiveBefore(Long.MAX_VALUE, 100)));
+
+        // 按游标分页，每页都跨越段边界
+        List<Long> paged = new ArrayList<>();
+        long cursor = Long.MAX_VALUE;
+        List<ChatMessage> page;
+        while (!(page = store.findActiveBefore(cursor, 3)).isEmpty()) {
+            paged.addAll(ids(page));
+            cursor = page.get(page.size() - 1).getId();
+        }
+        assertEquals(reversed(range(1, 20)), paged);
+
+        // 重新打开后从段文件恢复
+        store.close();
+        store = open();
+        assertEquals(20, store.count());
+        assertEquals(range(1, 20), ids(store.findActiveAfter(0, 100)));
+        assertEquals(range(8, 12), ids(store.findActiveAfter(7, 5)));
+    }
+
+    @Test
+    void reopenAfterTruncatedTail() throws IOException {
+        store = open();
+        store.saveAll(messages(1, 3));
+        store.close();
+
+        // 模拟崩溃时写了一半的记录：在最后一条记录之后写入长度不为0、内容不完整的数据
+        File segment = segmentFiles()[segmentFiles().length - 1];
+        int tail = endOfRecords(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(tail);
+            file.writeInt(100);
+            file.writeInt(12345);
+            file.write(new byte[]{1, 2, 3});
+        }
+
+        store = open();
+        assertEquals(3, store.count());
+        assertEquals(range(1, 3), ids(store.findActiveAfter(0, 100)));
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            file.seek(tail);
+            assertEquals(0, file.readInt(), "损坏的尾部应被清零");
+        }
+
+        // 截断后继续追加，重新打开仍然完整
+        store.saveAll(messages(4, 5));
+        store.close();
+        store = open();
+        assertEquals(5, store.count());
+        assertEquals(range(1, 5), ids(store.findActiveAfter(0, 100)));
+    }
+
+    @Test
+    void recallSurvivesReopen() throws IOException {
+        store = open();
+        store.saveAll(messages(1, 10));
+
+        ChatMessage recalled = store.findById(4);
+        recalled.recall();
+        store.saveAll(Collections.singletonList(recalled));
+
+        assertTrue(store.findById(4).getRecalled());
+        assertEquals(9, store.countActive());
+        assertFalse(ids(store.findActiveAfter(0, 100)).contains(4L));
+
+        store.close();
+        store = open();
+        ChatMessage reloaded = store.findById(4);
+        assertTrue(reloaded.getRecalled());
+        assertNotNull(reloaded.getRecalledAt());
+        assertEquals("[消息已被撤回]", reloaded.getContent());
+        assertEquals(10, store.count());
+        assertEquals(9, store.countActive());
+        assertEquals(Long.valueOf(9), store.countActiveByUser().get("10.0.0.1"));
+        assertFalse(ids(store.findActiveBefore(Long.MAX_VALUE, 100)).contains(4L));
+
+        // 重复提交同一条撤回不会再次扣减计数
+        store.saveAll(Collections.singletonList(reloaded));
+        assertEquals(9, store.countActive());
+    }
+
+    @Test
+    void missingIdReturnsNull() throws IOException {
+        store = open();
+        store.saveAll(messages(1, 3));
+        assertNull(store.findById(99));
+    }
+
+    private SegmentedLogMessageStore open() throws IOException {
+        SegmentedLogMessageStore opened = new SegmentedLogMessageStore();
+        ReflectionTestUtils.setField(opened, "logDir", logDir.toString());
+        ReflectionTestUtils.setField(opened, "segmentSize", SEGMENT_SIZE);
+        ReflectionTestUtils.setField(opened, "migrate", false);
+        opened.init();
+        return opened;
+    }
+
+    private File[] segmentFiles() {
+        File[] files = logDir.toFile().listFiles((dir, name) -> name.endsWith(".seg"));
+        assertNotNull(files);
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * 按记录头中的长度跳过所有记录，返回第一个空闲位置
+     */
+    private static int endOfRecords(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            int position = 0;
+            while (position + 8 <= file.length()) {
+                file.seek(position);
+                int length = file.readInt();
+                if (length <= 0) {
+                    break;
+                }
+                position += 8 + length;
+            }
+            return position;
+        }
+    }
+
+    private static List<ChatMessage> messages(long fromId, long toId) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (long id = fromId; id <= toId; id++) {
+            ChatMessage message = new ChatMessage("10.0.0.1", "10.0.0.1", "user", "content-" + id,
+                    ChatMessage.MessageType.TEXT, null);
+            message.setId(id);
+            message.setTimestamp(LocalDateTime.of(2024, 1, 1, 0, 0).plusMinutes(id));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static List<Long> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::getId).collect(Collectors.toList());
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> ids = new ArrayList<>();
+        for (long id = from; id <= to; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static List<Long> reversed(List<Long> ids) {
+        List<Long> copy = new ArrayList<>(ids);
+        Collections.reverse(copy);
+        return copy;
+    }
+}
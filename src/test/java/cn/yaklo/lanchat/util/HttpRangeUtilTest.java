@@ -0,0 +1,109 @@
+package cn.yaklo.lanchat.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HttpRangeUtilTest {
+
+    private static final long LENGTH = 100;
+
+    private static final String ETAG = "\"abc123\"";
+
+    // Sun, 06 Nov 1994 08:49:37 GMT
+    private static final long LAST_MODIFIED = 784111777000L;
+
+    /**
+     * 期望结果：NULL表示按完整内容返回，EMPTY表示416，否则为按返回顺序用;分隔的start-end
+     */
+    @ParameterizedTest(name = "{0} -> {1}")
+    @CsvSource(delimiter = '|', nullValues = "NULL", value = {
+            // 缺失或格式不正确：完整内容
+            "NULL                   | NULL",
+            "items=0-9              | NULL",
+            "bytes=abc              | NULL",
+            "bytes=a-9              | NULL",
+            "bytes=0-b              | NULL",
+            "bytes=9-0              | NULL",
+            // 普通区间和截断
+            "bytes=0-9              | 0-9",
+            "bytes=0-0              | 0-0",
+            "bytes=95-200           | 95-99",
+            "bytes= 0-9 , 20-29     | 0-9;20-29",
+            // 开放区间
+            "bytes=90-              | 90-99",
+            "bytes=0-               | 0-99",
+            // 后缀区间
+            "bytes=-10              | 90-99",
+            "bytes=-200             | 0-99",
+            // 不重叠时保持请求顺序
+            "bytes=20-29,0-9        | 20-29;0-9",
+            // 重叠或相邻时排序合并
+            "bytes=0-9,5-19         | 0-19",
+            "bytes=0-9,10-19        | 0-19",
+            "bytes=50-59,0-9,5-14   | 0-14;50-59",
+            "bytes=0-99,-10         | 0-99",
+            // 不可满足
+            "bytes=100-             | EMPTY",
+            "bytes=200-300          | EMPTY",
+            "bytes=-0               | EMPTY",
+            // 部分可满足时忽略不可满足的区间
+            "bytes=100-,0-4         | 0-4",
+    })
+    void parse(String header, String expected) {
+        assertEquals(expected, format(HttpRangeUtil.parse(header, LENGTH)));
+    }
+
+    @Test
+    void emptyFileIsUnsatisfiable() {
+        assertEquals("EMPTY", format(HttpRangeUtil.parse("bytes=0-", 0)));
+        assertEquals("EMPTY", format(HttpRangeUtil.parse("bytes=-10", 0)));
+    }
+
+    @Test
+    void tooManyRangesReturnsFullContent() {
+        StringBuilder header = new StringBuilder("bytes=");
+        for (int i = 0; i <= HttpRangeUtil.MAX_RANGES; i++) {
+            header.append(i == 0 ? "" : ",").append(i * 2).append('-').append(i * 2);
+        }
+        assertNull(HttpRangeUtil.parse(header.toString(), LENGTH));
+    }
+
+    @Test
+    void contentRange() {
+        HttpRangeUtil.ByteRange range = HttpRangeUtil.parse("bytes=-10", LENGTH).get(0);
+        assertEquals(10, range.length());
+        assertEquals("bytes 90-99/100", range.contentRange(LENGTH));
+    }
+
+    @ParameterizedTest(name = "{0} -> {1}")
+    @CsvSource(delimiter = '|', nullValues = "NULL", value = {
+            "NULL                            | true",
+            "'\"abc123\"'                    | true",
+            "'\"other\"'                     | false",
+            // 弱ETag不能用于If-Range
+            "'W/\"abc123\"'                  | false",
+            "'Sun, 06 Nov 1994 08:49:37 GMT' | true",
+            "'Sun, 06 Nov 1994 08:49:38 GMT' | false",
+            "not a date                      | false",
+    })
+    void isRangeApplicable(String ifRange, boolean expected) {
+        assertEquals(expected, HttpRangeUtil.isRangeApplicable(ifRange, ETAG, LAST_MODIFIED));
+    }
+
+    private static String format(List<HttpRangeUtil.ByteRange> ranges) {
+        if (ranges == null) {
+            return null;
+        }
+        if (ranges.isEmpty()) {
+            return "EMPTY";
+        }
+        return ranges.stream().map(range -> range.start + "-" + range.end).collect(Collectors.joining(";"));
+    }
+}
@@ -0,0 +1,70 @@
+package cn.yaklo.lanchat.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchTextUtilTest {
+
+    @Test
+    void indexTokensSplitCjkIntoUnigramsAndBigrams() {
+        assertEquals(Arrays.asList("你", "你好", "好", "世", "世界", "界"),
+                new ArrayList<>(SearchTextUtil.indexTokens("你好，世界")));
+    }
+
+    @Test
+    void indexTokensMixCjkAndAscii() {
+        assertEquals(Arrays.asList("hello", "世", "世界", "界", "java", "開", "開発", "発", "2024"),
+                new ArrayList<>(SearchTextUtil.indexTokens("Hello世界Java開発 2024!")));
+    }
+
+    @Test
+    void indexTokensTruncateLongWords() {
+        StringBuilder url = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            url.append('a');
+        }
+        assertEquals(Collections.singletonList(url.substring(0, SearchTextUtil.MAX_WORD_LENGTH)),
+                new ArrayList<>(SearchTextUtil.indexTokens(url.toString())));
+    }
+
+    @Test
+    void queryTokensUseBigramsForCjkAndPrefixesForWords() {
+        assertEquals(Arrays.asList("世界:false", "java:true"), describe(SearchTextUtil.queryTokens("世界Java")));
+        assertEquals(Arrays.asList("中华:false", "华人:false"), describe(SearchTextUtil.queryTokens("中华人")));
+        assertEquals(Collections.singletonList("中:false"), describe(SearchTextUtil.queryTokens("中")));
+        assertEquals(Arrays.asList("spring:true", "开:false", "boot:true"),
+                describe(SearchTextUtil.queryTokens("Spring开boot")));
+    }
+
+    @Test
+    void splitTermsDropsPunctuationOnlyTerms() {
+        assertEquals(Arrays.asList("你好", "java"), SearchTextUtil.splitTerms("  你好  ，，  JAVA "));
+    }
+
+    @Test
+    void containsTermIsCaseInsensitive() {
+        assertTrue(SearchTextUtil.containsTerm("学习Java编程", "java"));
+        assertTrue(SearchTextUtil.containsTerm("学习Java编程", "习java编"));
+        assertFalse(SearchTextUtil.containsTerm("学习Java编程", "python"));
+        assertFalse(SearchTextUtil.containsTerm(null, "java"));
+    }
+
+    @Test
+    void highlightEscapesHtmlAndMarksTerms() {
+        assertEquals("&lt;b&gt;<mark>你好</mark>&lt;/b&gt; <mark>Java</mark>",
+                SearchTextUtil.highlight("<b>你好</b> Java", Arrays.asList("你好", "java")));
+    }
+
+    private static List<String> describe(List<SearchTextUtil.QueryToken> tokens) {
+        return tokens.stream().map(token -> token.text + ":" + token.prefix).collect(Collectors.toList());
+    }
+}
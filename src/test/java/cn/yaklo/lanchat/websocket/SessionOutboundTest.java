@@ -0,0 +1,151 @@
+package cn.yaklo.lanchat.websocket;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SessionOutboundTest {
+
+    private WebSocketSession session;
+
+    // 已发送的消息内容，按发送顺序
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+    // 提交给发送线程池的任务，由测试手动执行
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        session = mock(WebSocketSession.class);
+        when(session.isOpen()).thenReturn(true);
+        when(session.getId()).thenReturn("s1");
+        doAnswer(invocation -> {
+            sent.add(((WebSocketMessage<?>) invocation.getArgument(0)).getPayload().toString());
+            return null;
+        }).when(session).sendMessage(any());
+    }
+
+    @Test
+    void drainsInOrderWithOneTaskPerBurst() {
+        SessionOutbound outbound = open(OverflowPolicy.DROP_OLDEST, 10);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(outbound.enqueue(new TextMessage("m" + i), true));
+        }
+        // 同一会话只有一个排空任务
+        assertEquals(1, tasks.size());
+
+        runTasks();
+        assertEquals(Arrays.asList("m1", "m2", "m3"), sent);
+        assertEquals(0, outbound.getQueueSize());
+
+        // 排空结束后再入队会提交新的任务
+        outbound.enqueue(new TextMessage("m4"), true);
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(Arrays.asList("m1", "m2", "m3", "m4"), sent);
+    }
+
+    @Test
+    void dropOldestSkipsControlFrames() throws IOException {
+        SessionOutbound outbound = open(OverflowPolicy.DROP_OLDEST, 3);
+        outbound.enqueue(new TextMessage("roster"), false);
+        outbound.enqueue(new TextMessage("m1"), true);
+        outbound.enqueue(new TextMessage("history"), false);
+
+        // 队列已满，丢弃最旧的聊天消息而不是排在前面的控制帧
+        assertTrue(outbound.enqueue(new TextMessage("m2"), true));
+        assertTrue(outbound.enqueue(new TextMessage("diff"), false));
+        assertEquals(2, outbound.getDroppedCount());
+        assertEquals(3, outbound.getQueueSize());
+
+        runTasks();
+        assertEquals(Arrays.asList("roster", "history", "diff"), sent);
+        verify(session, never()).close(any());
+    }
+
+    @Test
+    void dropOldestDisconnectsWhenOnlyControlFramesAreQueued() throws IOException {
+        SessionOutbound outbound = open(OverflowPolicy.DROP_OLDEST, 2);
+        outbound.enqueue(new TextMessage("roster"), false);
+        outbound.enqueue(new TextMessage("history"), false);
+
+        assertFalse(outbound.enqueue(new TextMessage("m1"), true));
+        assertEquals(0, outbound.getDroppedCount());
+        assertEquals(0, outbound.getQueueSize());
+        assertFalse(outbound.enqueue(new TextMessage("m2"), true));
+
+        runTasks();
+        assertTrue(sent.isEmpty());
+        verify(session).close(CloseStatus.SESSION_NOT_RELIABLE.withReason("发送队列已满"));
+    }
+
+    @Test
+    void disconnectPolicyClosesOnOverflow() throws IOException {
+        SessionOutbound outbound = open(OverflowPolicy.DISCONNECT, 2);
+        assertTrue(outbound.enqueue(new TextMessage("m1"), true));
+        assertTrue(outbound.enqueue(new TextMessage("m2"), true));
+        assertFalse(outbound.enqueue(new TextMessage("m3"), true));
+        assertEquals(0, outbound.getDroppedCount());
+
+        runTasks();
+        assertTrue(sent.isEmpty());
+        verify(session).close(CloseStatus.SESSION_NOT_RELIABLE.withReason("发送队列已满"));
+    }
+
+    @Test
+    void slowSendDisconnectsOnNextEnqueue() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(session).sendMessage(any());
+
+        SessionOutbound outbound = new SessionOutbound(session, WireProtocol.JSON, false, 10,
+                OverflowPolicy.DROP_OLDEST, 50, command -> new Thread(command).start());
+        outbound.enqueue(new TextMessage("m1"), true);
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+
+        try {
+            assertFalse(outbound.enqueue(new TextMessage("m2"), true));
+            verify(session, timeout(5000))
+                    .close(CloseStatus.SESSION_NOT_RELIABLE.withReason("发送超时"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private SessionOutbound open(OverflowPolicy policy, int capacity) {
+        return new SessionOutbound(session, WireProtocol.JSON, false, capacity, policy, 60000, tasks::add);
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+}